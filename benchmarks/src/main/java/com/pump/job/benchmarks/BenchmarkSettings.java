@@ -0,0 +1,31 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job.benchmarks;
+
+/**
+ * Settings shared by every benchmark.
+ */
+class BenchmarkSettings {
+	/**
+	 * The arguments appended to each forked JVM.
+	 * <p>
+	 * JobManager worker threads are not daemon threads and can't be stopped,
+	 * so without a short shutdown timeout JMH waits 30 seconds for them at
+	 * the end of every fork.
+	 */
+	static final String JVM_ARGS = "-Djmh.shutdownTimeout=1";
+
+	/**
+	 * The seed for every random number generator, so each run submits
+	 * exactly the same jobs.
+	 */
+	static final long SEED = 42L;
+}
@@ -0,0 +1,126 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pump.job.Job;
+import com.pump.job.JobManager;
+
+/**
+ * Measures how long a JobManager takes to run a whole graph of dependent
+ * jobs, from the first <code>addJob</code> call until the last job runs.
+ * <p>
+ * Each graph has about {@link #SIZE} empty jobs, so this measures the
+ * scheduler's bookkeeping for dependencies rather than the jobs themselves.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = BenchmarkSettings.JVM_ARGS)
+public class DependencyGraphBenchmark {
+	static final int SIZE = 1024;
+
+	/** The number of jobs in each layer of a {@link Shape#LAYERED} graph. */
+	static final int LAYER_WIDTH = 32;
+
+	public enum Shape {
+		/** One job that every other job depends on. */
+		FAN_OUT,
+
+		/** One job that depends on every other job. */
+		FAN_IN,
+
+		/**
+		 * Layers of jobs where each job depends on two random jobs in the
+		 * previous layer.
+		 */
+		LAYERED
+	}
+
+	@Param
+	Shape shape;
+
+	@Param({ "4", "16" })
+	int threadCount;
+
+	@Param({ "false", "true" })
+	boolean criticalPathScheduling;
+
+	JobManager manager;
+
+	/**
+	 * For each job, the indices of the jobs it depends on. The graph is
+	 * generated from a fixed seed, so every run uses the same graph.
+	 */
+	int[][] dependencies;
+
+	@Setup
+	public void setup() {
+		manager = new JobManager(threadCount);
+		manager.setCriticalPathScheduling(criticalPathScheduling);
+		dependencies = new int[SIZE][];
+		Random random = new Random(BenchmarkSettings.SEED);
+		for (int a = 0; a < SIZE; a++) {
+			if (shape == Shape.FAN_OUT) {
+				dependencies[a] = a == 0 ? new int[0] : new int[] { 0 };
+			} else if (shape == Shape.FAN_IN) {
+				if (a < SIZE - 1) {
+					dependencies[a] = new int[0];
+				} else {
+					dependencies[a] = new int[SIZE - 1];
+					for (int b = 0; b < SIZE - 1; b++) {
+						dependencies[a][b] = b;
+					}
+				}
+			} else if (a < LAYER_WIDTH) {
+				dependencies[a] = new int[0];
+			} else {
+				int previousLayer = (a / LAYER_WIDTH - 1) * LAYER_WIDTH;
+				dependencies[a] = new int[] {
+						previousLayer + random.nextInt(LAYER_WIDTH),
+						previousLayer + random.nextInt(LAYER_WIDTH) };
+			}
+		}
+	}
+
+	@Benchmark
+	public void runGraph() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(SIZE);
+		Job[] jobs = new Job[SIZE];
+		for (int a = 0; a < SIZE; a++) {
+			jobs[a] = new LatchJob(latch);
+			Job[] d = new Job[dependencies[a].length];
+			for (int b = 0; b < d.length; b++) {
+				d[b] = jobs[dependencies[a][b]];
+			}
+			jobs[a].setDependencies(d);
+		}
+		manager.addJob(jobs);
+		latch.await();
+	}
+}
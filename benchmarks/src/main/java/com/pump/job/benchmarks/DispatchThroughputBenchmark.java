@@ -0,0 +1,75 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job.benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pump.job.Job;
+import com.pump.job.JobManager;
+
+/**
+ * Measures how many empty jobs per second a JobManager can accept and run.
+ * <p>
+ * Each invocation submits {@link #JOBS} jobs (either one per
+ * <code>addJob</code> call or in batches) and waits for all of them to run,
+ * so this includes both the cost of submitting and the cost of dispatching.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = BenchmarkSettings.JVM_ARGS)
+public class DispatchThroughputBenchmark {
+	static final int JOBS = 10000;
+
+	@Param({ "1", "4", "16", "64" })
+	int threadCount;
+
+	/** The number of jobs passed to each addJob call. */
+	@Param({ "1", "100" })
+	int batchSize;
+
+	JobManager manager;
+
+	@Setup
+	public void setup() {
+		manager = new JobManager(threadCount);
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(JOBS)
+	public void submitAndRun() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(JOBS);
+		Job[] batch = new Job[batchSize];
+		for (int a = 0; a < JOBS; a += batchSize) {
+			for (int b = 0; b < batchSize; b++) {
+				batch[b] = new LatchJob(latch);
+			}
+			manager.addJob(batch);
+		}
+		latch.await();
+	}
+}
@@ -0,0 +1,37 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job.benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+
+import com.pump.job.Job;
+
+/**
+ * A job that does nothing except count down a latch, so a benchmark can wait
+ * for a known number of jobs to run.
+ */
+class LatchJob extends Job {
+	private final CountDownLatch latch;
+
+	LatchJob(CountDownLatch latch) {
+		this.latch = latch;
+	}
+
+	LatchJob(CountDownLatch latch, int priority) {
+		super(priority);
+		this.latch = latch;
+	}
+
+	@Override
+	protected void runJob() {
+		latch.countDown();
+	}
+}
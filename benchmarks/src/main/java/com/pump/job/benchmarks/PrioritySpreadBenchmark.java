@@ -0,0 +1,81 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job.benchmarks;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pump.job.Job;
+import com.pump.job.JobManager;
+
+/**
+ * Measures throughput when jobs are spread across many priorities.
+ * <p>
+ * Each invocation submits {@link #JOBS} jobs with randomly chosen priorities
+ * in one batch, so most of them wait in the queue, and then waits for all of
+ * them to run. The priorities are generated from a fixed seed, so every run
+ * uses the same sequence.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = BenchmarkSettings.JVM_ARGS)
+public class PrioritySpreadBenchmark {
+	static final int JOBS = 10000;
+
+	/** The number of distinct priorities. */
+	@Param({ "1", "16", "256", "65536" })
+	int priorityCount;
+
+	@Param({ "4" })
+	int threadCount;
+
+	JobManager manager;
+	int[] priorities;
+
+	@Setup
+	public void setup() {
+		manager = new JobManager(threadCount);
+		Random random = new Random(BenchmarkSettings.SEED);
+		priorities = new int[JOBS];
+		for (int a = 0; a < JOBS; a++) {
+			priorities[a] = random.nextInt(priorityCount);
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(JOBS)
+	public void submitAndRun() throws InterruptedException {
+		CountDownLatch latch = new CountDownLatch(JOBS);
+		Job[] jobs = new Job[JOBS];
+		for (int a = 0; a < JOBS; a++) {
+			jobs[a] = new LatchJob(latch, priorities[a]);
+		}
+		manager.addJob(jobs);
+		latch.await();
+	}
+}
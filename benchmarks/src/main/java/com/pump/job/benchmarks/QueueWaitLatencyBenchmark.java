@@ -0,0 +1,110 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job.benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pump.job.Job;
+import com.pump.job.JobManager;
+
+/**
+ * Measures the time from <code>addJob</code> until a job starts running.
+ * <p>
+ * The sampled times include a job's whole trip through the queue: waking a
+ * worker, polling the queue and starting the job. Optionally other workers
+ * are kept busy with background jobs, so the measured job competes for the
+ * queue with them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = BenchmarkSettings.JVM_ARGS)
+public class QueueWaitLatencyBenchmark {
+
+	/** A job that counts down a latch as soon as it starts. */
+	static class StartJob extends Job {
+		final CountDownLatch started = new CountDownLatch(1);
+
+		@Override
+		protected void runJob() {
+			started.countDown();
+		}
+	}
+
+	/** A low priority job that keeps a worker busy until it is cancelled. */
+	static class BusyJob extends Job {
+		BusyJob() {
+			super(Job.PRIORITY_LOW);
+		}
+
+		@Override
+		protected void runJob() {
+			while (!isCancelled()) {
+				Thread.onSpinWait();
+			}
+		}
+	}
+
+	@Param({ "1", "4", "16", "64" })
+	int threadCount;
+
+	/**
+	 * If true then all but one of the workers are kept busy, so every
+	 * measured job is started by the same idle worker.
+	 */
+	@Param({ "false", "true" })
+	boolean busy;
+
+	JobManager manager;
+	BusyJob[] busyJobs = new BusyJob[0];
+
+	@Setup
+	public void setup() {
+		manager = new JobManager(threadCount);
+		if (busy) {
+			busyJobs = new BusyJob[threadCount - 1];
+			for (int a = 0; a < busyJobs.length; a++) {
+				busyJobs[a] = new BusyJob();
+			}
+			manager.addJob(busyJobs);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (BusyJob job : busyJobs) {
+			job.cancel();
+		}
+	}
+
+	@Benchmark
+	public void queueWait() throws InterruptedException {
+		StartJob job = new StartJob();
+		manager.addJob(job);
+		job.started.await();
+	}
+}
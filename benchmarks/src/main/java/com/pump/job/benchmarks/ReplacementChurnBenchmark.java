@@ -0,0 +1,124 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job.benchmarks;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.pump.job.Job;
+import com.pump.job.JobManager;
+
+/**
+ * Measures the cost of submitting jobs that replace each other (see
+ * {@link Job#getReplacementId()}), such as the jobs a slider might submit
+ * every time it moves.
+ * <p>
+ * Each invocation submits {@link #JOBS} jobs that cycle through a fixed set
+ * of replacement ids, and waits until every job has either run or been
+ * skipped.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(value = 2, jvmArgsAppend = BenchmarkSettings.JVM_ARGS)
+public class ReplacementChurnBenchmark {
+	static final int JOBS = 10000;
+
+	static class ReplacementJob extends Job {
+		final String replacementId;
+
+		ReplacementJob(String replacementId) {
+			this.replacementId = replacementId;
+		}
+
+		@Override
+		public String getReplacementId() {
+			return replacementId;
+		}
+
+		@Override
+		protected void runJob() {
+		}
+	}
+
+	/** The number of distinct replacement ids. */
+	@Param({ "1", "16", "1024" })
+	int idCount;
+
+	@Param({ "4" })
+	int threadCount;
+
+	JobManager manager;
+	String[] ids;
+
+	/** Counts down once for each job that runs or is skipped. */
+	volatile CountDownLatch latch;
+
+	@Setup
+	public void setup() {
+		manager = new JobManager(threadCount);
+		ids = new String[idCount];
+		for (int a = 0; a < idCount; a++) {
+			ids[a] = "id-" + a;
+		}
+		manager.addListener(new JobManager.Listener() {
+			public void jobRemoved(JobManager m, Job... jobs) {
+				countDown(jobs.length);
+			}
+
+			public void jobSkipped(JobManager m, Job... jobs) {
+				countDown(jobs.length);
+			}
+
+			public void jobError(JobManager m, Job job, Throwable throwable) {
+				countDown(1);
+			}
+
+			public void jobAdded(JobManager m, Job... jobs) {
+			}
+
+			public void jobQueued(JobManager m, Job... jobs) {
+			}
+		});
+	}
+
+	void countDown(int count) {
+		CountDownLatch l = latch;
+		for (int a = 0; a < count; a++) {
+			l.countDown();
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(JOBS)
+	public void submitAndReplace() throws InterruptedException {
+		latch = new CountDownLatch(JOBS);
+		for (int a = 0; a < JOBS; a++) {
+			manager.addJob(new ReplacementJob(ids[a % idCount]));
+		}
+		latch.await();
+	}
+}
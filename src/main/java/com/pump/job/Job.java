@@ -12,7 +12,11 @@ package com.pump.job;
 
 import java.awt.event.ActionListener;
 import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
 import com.pump.UserCancelledException;
@@ -42,9 +46,39 @@ public abstract class Job implements Runnable, Cancellable {
 	public static final Key<String> NOTE = new Key<String>("note", String.class);
 	public static final Key<Integer> PRIORITY = new Key<Integer>("priority",
 			Integer.class);
+	public static final Key<Boolean> BLOCKING = new Key<Boolean>("blocking",
+			Boolean.class);
+	public static final Key<String> RESOURCE_CLASS = new Key<String>(
+			"resourceClass", String.class);
+	public static final Key<RetryPolicy> RETRY_POLICY = new Key<RetryPolicy>(
+			"retryPolicy", RetryPolicy.class);
 
 	ObservableProperties properties = new ObservableProperties();
 
+	/**
+	 * The handle of the most recent submission of this job to a JobManager,
+	 * or null if this job was never submitted. This is only modified while
+	 * synchronized against that JobManager's queue.
+	 */
+	volatile JobHandle lastHandle;
+
+	private volatile long progressCompleted = 0;
+	private volatile long progressTotal = 0;
+	private volatile int maxProgressNotificationsPerSecond = 20;
+
+	/**
+	 * The last time (see System.nanoTime()) progress listeners were notified.
+	 * This starts a second in the past (longer than any notification
+	 * interval), because System.nanoTime() has an arbitrary origin.
+	 */
+	private volatile long lastProgressNotification = System.nanoTime()
+			- 1000000000L;
+
+	/** True while a progress notification is scheduled. */
+	private final AtomicBoolean progressNotificationScheduled = new AtomicBoolean(
+			false);
+	private final CopyOnWriteArrayList<ChangeListener> progressListeners = new CopyOnWriteArrayList<ChangeListener>();
+
 	/** Creates a medium-priority job. */
 	public Job() {
 		properties.set(CANCELLED, false);
@@ -52,6 +86,7 @@ public abstract class Job implements Runnable, Cancellable {
 		properties.set(DESCRIPTION, "");
 		properties.set(NOTE, "");
 		properties.set(PRIORITY, PRIORITY_MEDIUM);
+		properties.set(BLOCKING, false);
 		setName("Untitled-" + System.identityHashCode(this));
 	}
 
@@ -134,6 +169,131 @@ public abstract class Job implements Runnable, Cancellable {
 		properties.set(NOTE, s);
 	}
 
+	/**
+	 * Assign how much of this job's work is done. This is designed to be
+	 * called from a tight loop: it only writes two volatile fields, and it
+	 * never locks or notifies listeners on the calling thread. Progress
+	 * listeners are notified later (see
+	 * {@link #setProgressNotificationRate(int)}).
+	 * <p>
+	 * The two values are written separately, so a thread reading them while
+	 * they change may briefly see the new completed value with the old total.
+	 * 
+	 * @param completed
+	 *            the number of units of work that are done.
+	 * @param total
+	 *            the total number of units of work, or zero if it is not
+	 *            known.
+	 * @see #getProgress()
+	 */
+	public void setProgress(long completed, long total) {
+		if (completed < 0 || total < 0)
+			throw new IllegalArgumentException("completed (" + completed
+					+ ") and total (" + total + ") must not be negative");
+		progressCompleted = completed;
+		progressTotal = total;
+		if (!progressListeners.isEmpty()
+				&& !progressNotificationScheduled.get()
+				&& progressNotificationScheduled.compareAndSet(false, true)) {
+			long interval = 1000000000L / maxProgressNotificationsPerSecond;
+			JobTimer.schedule(new Runnable() {
+				public void run() {
+					// clear this first, so a later update schedules another
+					// notification
+					progressNotificationScheduled.set(false);
+					lastProgressNotification = System.nanoTime();
+					ChangeEvent e = new ChangeEvent(Job.this);
+					for (ChangeListener l : progressListeners) {
+						l.stateChanged(e);
+					}
+				}
+			}, lastProgressNotification + interval - System.nanoTime());
+		}
+	}
+
+	/**
+	 * Return the number of units of work that are done.
+	 * 
+	 * @see #setProgress(long, long)
+	 */
+	public long getProgressCompleted() {
+		return progressCompleted;
+	}
+
+	/**
+	 * Return the total number of units of work, or zero if it is not known.
+	 * 
+	 * @see #setProgress(long, long)
+	 */
+	public long getProgressTotal() {
+		return progressTotal;
+	}
+
+	/**
+	 * Return the fraction of this job's work that is done, from 0 to 1, or -1
+	 * if the total amount of work is not known.
+	 * 
+	 * @see #setProgress(long, long)
+	 */
+	public double getProgress() {
+		long total = progressTotal;
+		if (total == 0)
+			return -1;
+		return Math.min(1, ((double) progressCompleted) / total);
+	}
+
+	/**
+	 * Adds a listener interested in progress changes.
+	 * <p>
+	 * Progress listeners are notified on a shared timer thread, at most
+	 * {@link #getProgressNotificationRate()} times per second, and only after
+	 * the progress changed. They should be very light (for example: they
+	 * might call <code>SwingUtilities.invokeLater()</code>).
+	 * 
+	 * @param l
+	 *            this listener will be notified when this job's progress
+	 *            changes.
+	 */
+	public void addProgressListener(ChangeListener l) {
+		progressListeners.add(l);
+	}
+
+	/**
+	 * Removes a listener that was interested in progress changes.
+	 * <p>
+	 * A notification that is already running may still reach this listener.
+	 * 
+	 * @param l
+	 *            this listener will no longer be notified when this job's
+	 *            progress changes.
+	 */
+	public void removeProgressListener(ChangeListener l) {
+		progressListeners.remove(l);
+	}
+
+	/**
+	 * Assign the maximum number of times per second progress listeners are
+	 * notified. The default is 20.
+	 * 
+	 * @see #addProgressListener(ChangeListener)
+	 */
+	public void setProgressNotificationRate(int maxNotificationsPerSecond) {
+		if (maxNotificationsPerSecond < 1)
+			throw new IllegalArgumentException("maxNotificationsPerSecond ("
+					+ maxNotificationsPerSecond + ") must be at least 1");
+		this.maxProgressNotificationsPerSecond = maxNotificationsPerSecond;
+	}
+
+	/**
+	 * Return the maximum number of times per second progress listeners are
+	 * notified.
+	 * 
+	 * @see #setProgressNotificationRate(int)
+	 */
+	public int getProgressNotificationRate() {
+		return maxProgressNotificationsPerSecond;
+	}
+
 	public void setPriority(int priority) {
 		properties.set(PRIORITY, priority);
 	}
@@ -142,6 +302,76 @@ public abstract class Job implements Runnable, Cancellable {
 		return properties.get(PRIORITY);
 	}
 
+	/**
+	 * Declare whether this job spends most of its time blocked (for example:
+	 * waiting on file or socket I/O) rather than using the CPU.
+	 * <p>
+	 * A {@link JobManager} using
+	 * {@link JobManager.ExecutionMode#VIRTUAL_THREADS} does not count blocking
+	 * jobs against its thread count. Other JobManagers ignore this attribute.
+	 * This should be set before the job is submitted.
+	 */
+	public void setBlocking(boolean blocking) {
+		properties.set(BLOCKING, blocking);
+	}
+
+	/**
+	 * Return true if this job spends most of its time blocked rather than
+	 * using the CPU.
+	 * 
+	 * @see #setBlocking(boolean)
+	 */
+	public boolean isBlocking() {
+		return properties.get(BLOCKING);
+	}
+
+	/**
+	 * Assign the resource class this job uses, such as "disk" or "database".
+	 * <p>
+	 * A {@link JobManager} limits how many jobs of each resource class run at
+	 * once (see {@link JobManager#setConcurrencyLimit(String, int)}). Jobs of
+	 * a saturated resource class wait without occupying a worker thread,
+	 * while jobs of other resource classes run. This should be set before the
+	 * job is submitted.
+	 * 
+	 * @param resourceClass
+	 *            the name of a resource class, or null if this job isn't
+	 *            limited by any resource class.
+	 */
+	public void setResourceClass(String resourceClass) {
+		properties.set(RESOURCE_CLASS, resourceClass);
+	}
+
+	/**
+	 * Return the resource class this job uses, or null.
+	 * 
+	 * @see #setResourceClass(String)
+	 */
+	public String getResourceClass() {
+		return properties.get(RESOURCE_CLASS);
+	}
+
+	/**
+	 * Assign the policy a {@link JobManager} uses to retry this job if it
+	 * fails. This should be set before the job is submitted.
+	 * 
+	 * @param retryPolicy
+	 *            the policy to use, or null if this job should not be
+	 *            retried.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		properties.set(RETRY_POLICY, retryPolicy);
+	}
+
+	/**
+	 * Return the policy used to retry this job if it fails, or null.
+	 * 
+	 * @see #setRetryPolicy(RetryPolicy)
+	 */
+	public RetryPolicy getRetryPolicy() {
+		return properties.get(RETRY_POLICY);
+	}
+
 	/**
 	 * If this is non-null, then the {@link JobManager} should immediately
 	 * replace all jobs with the same replacement-id.
@@ -239,7 +469,78 @@ public abstract class Job implements Runnable, Cancellable {
 	 */
 	protected abstract void runJob() throws Exception;
 
+	/**
+	 * Submit a child job to the {@link JobManager} that is running this job.
+	 * This may only be called from <code>runJob()</code>.
+	 * <p>
+	 * Children are structured: cancelling this job cancels its unfinished
+	 * children, and this job is not marked as finished until all of its
+	 * children have finished (or been skipped), even if it never calls
+	 * {@link #join()}. If <code>runJob()</code> throws an exception then the
+	 * unfinished children are cancelled.
+	 * 
+	 * @param child
+	 *            the job to submit.
+	 * @return the handle of the child.
+	 * @throws IllegalStateException
+	 *             if this job is not running in a JobManager on the current
+	 *             thread.
+	 */
+	protected final JobHandle fork(Job child) {
+		JobHandle handle = JobManager.getRunningHandle(this);
+		return handle.manager.fork(handle, child);
+	}
+
+	/**
+	 * Wait until every child this job forked has finished or been skipped.
+	 * This may only be called from <code>runJob()</code>.
+	 * <p>
+	 * While it waits, the current thread runs children that are still in the
+	 * queue, so joining never deadlocks a JobManager whose workers are all
+	 * joining.
+	 * 
+	 * @throws ExecutionException
+	 *             if a child threw an exception since the last call to this
+	 *             method. The cause is the first such exception.
+	 * @throws IllegalStateException
+	 *             if this job is not running in a JobManager on the current
+	 *             thread.
+	 */
+	protected final void join() throws ExecutionException {
+		JobHandle handle = JobManager.getRunningHandle(this);
+		handle.manager.joinChildren(handle);
+		Throwable throwable;
+		synchronized (handle) {
+			throwable = handle.childThrowable;
+			handle.childThrowable = null;
+		}
+		if (throwable != null)
+			throw new ExecutionException(throwable);
+	}
+
 	public final void run() {
+		run(null, null, 1);
+	}
+
+	/**
+	 * Run this job, either in this process or in a worker process.
+	 * 
+	 * @param workers
+	 *            if non-null then <code>runJob()</code> is invoked on a copy
+	 *            of this job in one of these worker processes.
+	 * @param retryPolicy
+	 *            the policy that decides whether this job will be retried if
+	 *            it fails, or null. A job that will be retried is not marked
+	 *            as finished.
+	 * @param attempt
+	 *            the number of times this job has been run, including this
+	 *            attempt.
+	 */
+	final void run(RemoteWorkerPool workers, RetryPolicy retryPolicy,
+			int attempt) {
+		JobEvents.started(this);
+		Object finishedEvent = JobEvents.beginFinished();
+		Throwable throwable = null;
 		try {
 			for (Job dependency : getDependencies()) {
 				if (dependency.isCancelled())
@@ -254,23 +555,35 @@ public abstract class Job implements Runnable, Cancellable {
 							+ "\" should not be initiated until the job \""
 							+ dependency.getName() + "\" is finished.");
 			}
-			runJob();
+			if (workers == null) {
+				runJob();
+			} else {
+				workers.execute(this);
+			}
 		} catch (UserCancelledException e) {
 			System.err.println("Job: Cancelled \"" + getName() + "\"");
+			JobEvents.cancelled(this);
 			throw e;
 		} catch (RuntimeException e) {
 			System.err.println("Job: RuntimeException executing \"" + getName()
 					+ "\"");
+			throwable = e;
 			throw e;
 		} catch (Error e) {
 			System.err.println("Job: Error executing \"" + getName() + "\"");
+			throwable = e;
 			throw e;
 		} catch (Exception e) {
 			System.err
 					.println("Job: Exception executing \"" + getName() + "\"");
+			throwable = e;
 			throw new RuntimeException(e);
 		} finally {
-			properties.set(FINISHED, true);
+			JobManager.joinForkedJobs(this, throwable != null);
+			JobEvents.finished(finishedEvent, this, throwable);
+			if (retryPolicy == null
+					|| !retryPolicy.shouldRetry(this, throwable, attempt))
+				properties.set(FINISHED, true);
 		}
 	}
 
@@ -0,0 +1,220 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events for the lifecycle of a {@link Job}.
+ * <p>
+ * Each event describes the job's name, priority, replacement id and number of
+ * dependencies. When recording is disabled (or these events are not enabled
+ * in the recording's settings) emitting an event costs almost nothing, and the
+ * job's properties are not read. The event classes aren't loaded until the
+ * Flight Recorder is initialized, because loading them is relatively
+ * expensive.
+ * <p>
+ * The <code>jdk.jfr</code> module is optional: if the runtime doesn't include
+ * it then every method in this class does nothing. Only the {@link Recorder}
+ * class and the event classes refer to <code>jdk.jfr</code>, so they are never
+ * loaded on such a runtime.
+ */
+class JobEvents {
+
+	/** Whether the runtime includes the <code>jdk.jfr</code> module. */
+	private static final boolean JFR_AVAILABLE = ModuleLayer.boot()
+			.findModule("jdk.jfr").isPresent();
+
+	/**
+	 * Return true if the Flight Recorder has been initialized, so events may
+	 * be recorded.
+	 */
+	private static boolean isRecorderInitialized() {
+		return JFR_AVAILABLE && Recorder.isInitialized();
+	}
+
+	@Category({ "Pumpernickel", "Jobs" })
+	@StackTrace(false)
+	static abstract class JobEvent extends Event {
+		@Label("Job Name")
+		String name;
+
+		@Label("Priority")
+		int priority;
+
+		@Label("Replacement Id")
+		String replacementId;
+
+		@Label("Dependency Count")
+		int dependencyCount;
+
+		void set(Job job) {
+			name = job.getName();
+			priority = job.getPriority();
+			replacementId = job.getReplacementId();
+			dependencyCount = job.getDependencies().length;
+		}
+	}
+
+	@Name("com.pump.job.JobQueued")
+	@Label("Job Queued")
+	@Description("A job was submitted to a JobManager")
+	static class Queued extends JobEvent {
+	}
+
+	@Name("com.pump.job.JobStarted")
+	@Label("Job Started")
+	static class Started extends JobEvent {
+	}
+
+	@Name("com.pump.job.JobFinished")
+	@Label("Job Finished")
+	@Description("A job ran, either successfully or with an error; the duration is the time it spent running")
+	static class Finished extends JobEvent {
+		@Label("Error")
+		@Description("The class of the exception the job threw, or null if it was successful")
+		String error;
+	}
+
+	@Name("com.pump.job.JobCancelled")
+	@Label("Job Cancelled")
+	@Description("A job stopped early because it or one of its dependencies was cancelled")
+	static class Cancelled extends JobEvent {
+	}
+
+	@Name("com.pump.job.JobSkipped")
+	@Label("Job Skipped")
+	@Description("A JobManager removed a job without running it")
+	static class Skipped extends JobEvent {
+	}
+
+	/**
+	 * The code that refers to <code>jdk.jfr</code>. This is only loaded if
+	 * {@link JobEvents#JFR_AVAILABLE} is true.
+	 */
+	private static class Recorder {
+		static boolean isInitialized() {
+			return FlightRecorder.isInitialized();
+		}
+
+		static void started(Job job) {
+			Started event = new Started();
+			if (event.shouldCommit()) {
+				event.set(job);
+				event.commit();
+			}
+		}
+
+		static Object beginFinished() {
+			Finished event = new Finished();
+			if (!event.isEnabled())
+				return null;
+			event.begin();
+			return event;
+		}
+
+		static void finished(Object event, Job job, Throwable throwable) {
+			Finished finishedEvent = (Finished) event;
+			finishedEvent.end();
+			if (finishedEvent.shouldCommit()) {
+				finishedEvent.set(job);
+				if (throwable != null)
+					finishedEvent.error = throwable.getClass().getName();
+				finishedEvent.commit();
+			}
+		}
+
+		static void cancelled(Job job) {
+			Cancelled event = new Cancelled();
+			if (event.shouldCommit()) {
+				event.set(job);
+				event.commit();
+			}
+		}
+
+		static void queued(Job... jobs) {
+			Queued event = new Queued();
+			if (!event.isEnabled())
+				return;
+			for (Job job : jobs) {
+				event = new Queued();
+				event.set(job);
+				event.commit();
+			}
+		}
+
+		static void skipped(Job... jobs) {
+			Skipped event = new Skipped();
+			if (!event.isEnabled())
+				return;
+			for (Job job : jobs) {
+				event = new Skipped();
+				event.set(job);
+				event.commit();
+			}
+		}
+	}
+
+	/** Emit a {@link Started} event. */
+	static void started(Job job) {
+		if (isRecorderInitialized())
+			Recorder.started(job);
+	}
+
+	/**
+	 * Start timing a job for a {@link Finished} event.
+	 * 
+	 * @return an object to pass to {@link #finished(Object, Job, Throwable)},
+	 *         or null if the event will not be recorded.
+	 */
+	static Object beginFinished() {
+		if (!isRecorderInitialized())
+			return null;
+		return Recorder.beginFinished();
+	}
+
+	/**
+	 * Emit a {@link Finished} event.
+	 * 
+	 * @param event
+	 *            the value {@link #beginFinished()} returned.
+	 * @param throwable
+	 *            the exception the job threw, or null.
+	 */
+	static void finished(Object event, Job job, Throwable throwable) {
+		if (event != null)
+			Recorder.finished(event, job, throwable);
+	}
+
+	/** Emit a {@link Cancelled} event. */
+	static void cancelled(Job job) {
+		if (isRecorderInitialized())
+			Recorder.cancelled(job);
+	}
+
+	/** Emit a {@link Queued} event for each job. */
+	static void queued(Job... jobs) {
+		if (isRecorderInitialized())
+			Recorder.queued(jobs);
+	}
+
+	/** Emit a {@link Skipped} event for each job. */
+	static void skipped(Job... jobs) {
+		if (isRecorderInitialized())
+			Recorder.skipped(jobs);
+	}
+}
@@ -0,0 +1,184 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job;
+
+import java.awt.event.ActionListener;
+import java.util.Set;
+
+/**
+ * This tracks one submission of a {@link Job} to a {@link JobManager}. These
+ * are returned by {@link JobManager#addJob(Job...)}.
+ * <p>
+ * A handle knows where its job is waiting, so {@link #remove()} and
+ * {@link #setPriority(int)} don't need to search the JobManager's queue.
+ * <p>
+ * The priority is captured when the job is submitted, and the sequence number
+ * preserves FIFO ordering among jobs of the same priority.
+ */
+public class JobHandle {
+	final JobManager manager;
+	final Job job;
+
+	/**
+	 * The priority this job is scheduled with. This is only modified while
+	 * synchronized against the JobManager's queue.
+	 */
+	volatile int priority;
+	final boolean blocking;
+
+	/** The resource class this job was submitted with, or null. */
+	final String resourceClass;
+	final long sequence;
+
+	/**
+	 * The index of this handle in its {@link JobHeap}, or -1 if this handle is
+	 * not currently in a heap.
+	 */
+	int heapIndex = -1;
+
+	/**
+	 * The dependencies of this job when it was submitted.
+	 */
+	Job[] dependencies;
+
+	/**
+	 * The number of dependencies that must finish before this job can start.
+	 */
+	int pendingDependencies = 0;
+
+	/**
+	 * The number of jobs on the longest chain of pending jobs that depend on
+	 * this job, if the JobManager uses critical path scheduling. Otherwise
+	 * this is zero.
+	 */
+	int criticalPath = 0;
+
+	/**
+	 * The time (see System.nanoTime()) this job became ready to start.
+	 */
+	long readyTime;
+
+	/**
+	 * The cache key of this job, if it is a {@link ResultJob} that other
+	 * submissions with the same key are waiting for.
+	 */
+	Object cacheKey;
+
+	/** The policy used to retry this job if it fails, or null. */
+	RetryPolicy retryPolicy;
+
+	/** The number of times this job has been started. */
+	int attempt = 0;
+
+	/** The handle of the running job that forked this job, or null. */
+	JobHandle parent;
+
+	/**
+	 * The jobs this job forked that have not finished yet, or null. This is
+	 * guarded by this handle.
+	 */
+	Set<JobHandle> children;
+
+	/**
+	 * The first exception a child of this job threw since the last
+	 * {@link Job#join()}. This is guarded by this handle.
+	 */
+	Throwable childThrowable;
+
+	/**
+	 * True if this job was removed without running. This is only modified
+	 * while synchronized against the JobManager's queue.
+	 */
+	volatile boolean skipped = false;
+
+	/** The listener that cancels this job's children, or null. */
+	ActionListener cancelListener;
+
+	/** The journal that records this job, or null. */
+	JobJournal journal;
+
+	/** The id of this job in its {@link #journal}. */
+	long journalId;
+
+	JobHandle(JobManager manager, Job job, int priority, boolean blocking,
+			String resourceClass, long sequence) {
+		this.manager = manager;
+		this.job = job;
+		this.priority = priority;
+		this.blocking = blocking;
+		this.resourceClass = resourceClass;
+		this.sequence = sequence;
+	}
+
+	/** Return the job this handle submitted. */
+	public Job getJob() {
+		return job;
+	}
+
+	/** Return the JobManager this handle's job was submitted to. */
+	public JobManager getJobManager() {
+		return manager;
+	}
+
+	/** Return the priority this job is scheduled with. */
+	public int getPriority() {
+		return priority;
+	}
+
+	/**
+	 * Remove this job if it hasn't started yet.
+	 * 
+	 * @return true if the job was removed, false if it already started or
+	 *         was already removed.
+	 * @see JobManager#removeJob(JobHandle)
+	 */
+	public boolean remove() {
+		return manager.removeJob(this);
+	}
+
+	/**
+	 * Change the priority of this job if it hasn't started yet.
+	 * 
+	 * @return true if the priority was changed, false if the job already
+	 *         started or was removed.
+	 * @see JobManager#setPriority(JobHandle, int)
+	 */
+	public boolean setPriority(int priority) {
+		return manager.setPriority(this, priority);
+	}
+
+	/**
+	 * Return true if this job is still waiting to start.
+	 */
+	public boolean isPending() {
+		return manager.isPending(this);
+	}
+
+	/**
+	 * Return true if this handle should be executed before the argument.
+	 * Among jobs of the same priority, a job with a longer critical path goes
+	 * first.
+	 */
+	boolean precedes(JobHandle other) {
+		if (priority != other.priority)
+			return priority > other.priority;
+		if (criticalPath != other.criticalPath)
+			return criticalPath > other.criticalPath;
+		return sequence < other.sequence;
+	}
+
+	@Override
+	public String toString() {
+		return "JobHandle[ job=" + job + ", priority=" + priority
+				+ ", criticalPath=" + criticalPath + ", sequence=" + sequence
+				+ "]";
+	}
+}
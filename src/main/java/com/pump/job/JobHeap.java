@@ -0,0 +1,213 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.function.Predicate;
+
+/**
+ * An indexed binary heap of {@link JobHandle JobHandles}. The head of this heap
+ * is the handle that should execute next (see
+ * {@link JobHandle#precedes(JobHandle)}).
+ * <p>
+ * Each handle records its own position in the heap, so removing an arbitrary
+ * handle costs O(log n) instead of a linear search.
+ * <p>
+ * This class is not thread-safe.
+ */
+class JobHeap {
+	static final Comparator<JobHandle> EXECUTION_ORDER = new Comparator<JobHandle>() {
+		public int compare(JobHandle o1, JobHandle o2) {
+			if (o1 == o2)
+				return 0;
+			return o1.precedes(o2) ? -1 : 1;
+		}
+	};
+
+	private JobHandle[] elements = new JobHandle[16];
+	private int size = 0;
+
+	/** Return the number of handles in this heap. */
+	public int size() {
+		return size;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/** Return true if the argument is currently in this heap. */
+	public boolean contains(JobHandle handle) {
+		int i = handle.heapIndex;
+		return i >= 0 && i < size && elements[i] == handle;
+	}
+
+	/** Add a handle to this heap. */
+	public void add(JobHandle handle) {
+		if (handle.heapIndex != -1)
+			throw new IllegalArgumentException("the handle " + handle
+					+ " is already in a heap");
+		if (size == elements.length)
+			elements = Arrays.copyOf(elements, size * 2);
+		elements[size] = handle;
+		handle.heapIndex = size;
+		size++;
+		siftUp(size - 1);
+	}
+
+	/** Return the handle that should execute next, or null if empty. */
+	public JobHandle peek() {
+		return size == 0 ? null : elements[0];
+	}
+
+	/** Remove and return the handle that should execute next. */
+	public JobHandle poll() {
+		if (size == 0)
+			return null;
+		JobHandle head = elements[0];
+		removeAt(0);
+		return head;
+	}
+
+	/**
+	 * Remove a handle from this heap.
+	 *
+	 * @return true if the handle was removed, false if it was not in this
+	 *         heap.
+	 */
+	public boolean remove(JobHandle handle) {
+		if (!contains(handle))
+			return false;
+		removeAt(handle.heapIndex);
+		return true;
+	}
+
+	/**
+	 * Restore the order of this heap after a handle's priority changed.
+	 */
+	public void update(JobHandle handle) {
+		if (!contains(handle))
+			throw new IllegalArgumentException("the handle " + handle
+					+ " is not in this heap");
+		int index = handle.heapIndex;
+		siftDown(index);
+		if (elements[index] == handle)
+			siftUp(index);
+	}
+
+	/**
+	 * Remove every handle that matches a filter. This costs O(n) regardless
+	 * of how many handles are removed.
+	 * 
+	 * @param filter
+	 *            the handles to remove.
+	 * @param removedHandles
+	 *            the removed handles are added to this collection.
+	 */
+	public void removeIf(Predicate<JobHandle> filter,
+			Collection<JobHandle> removedHandles) {
+		int newSize = 0;
+		for (int a = 0; a < size; a++) {
+			JobHandle handle = elements[a];
+			if (filter.test(handle)) {
+				handle.heapIndex = -1;
+				removedHandles.add(handle);
+			} else {
+				elements[newSize] = handle;
+				handle.heapIndex = newSize;
+				newSize++;
+			}
+		}
+		if (newSize == size)
+			return;
+		Arrays.fill(elements, newSize, size, null);
+		size = newSize;
+		for (int a = size / 2 - 1; a >= 0; a--) {
+			siftDown(a);
+		}
+	}
+
+	/**
+	 * Return the handle at a given index. The order of handles is an
+	 * implementation detail; this is only useful to iterate over every
+	 * element.
+	 */
+	public JobHandle get(int index) {
+		if (index < 0 || index >= size)
+			throw new IndexOutOfBoundsException(index + " is not within [0, "
+					+ size + ")");
+		return elements[index];
+	}
+
+	/** Remove every handle from this heap. */
+	public void clear() {
+		for (int a = 0; a < size; a++) {
+			elements[a].heapIndex = -1;
+			elements[a] = null;
+		}
+		size = 0;
+	}
+
+	private void removeAt(int index) {
+		JobHandle removed = elements[index];
+		removed.heapIndex = -1;
+		size--;
+		if (index == size) {
+			elements[size] = null;
+			return;
+		}
+		JobHandle last = elements[size];
+		elements[size] = null;
+		elements[index] = last;
+		last.heapIndex = index;
+		siftDown(index);
+		if (elements[index] == last)
+			siftUp(index);
+	}
+
+	private void siftUp(int index) {
+		JobHandle handle = elements[index];
+		while (index > 0) {
+			int parentIndex = (index - 1) / 2;
+			JobHandle parent = elements[parentIndex];
+			if (!handle.precedes(parent))
+				break;
+			elements[index] = parent;
+			parent.heapIndex = index;
+			index = parentIndex;
+		}
+		elements[index] = handle;
+		handle.heapIndex = index;
+	}
+
+	private void siftDown(int index) {
+		JobHandle handle = elements[index];
+		int half = size / 2;
+		while (index < half) {
+			int childIndex = 2 * index + 1;
+			JobHandle child = elements[childIndex];
+			int rightIndex = childIndex + 1;
+			if (rightIndex < size && elements[rightIndex].precedes(child)) {
+				childIndex = rightIndex;
+				child = elements[rightIndex];
+			}
+			if (!child.precedes(handle))
+				break;
+			elements[index] = child;
+			child.heapIndex = index;
+			index = childIndex;
+		}
+		elements[index] = handle;
+		handle.heapIndex = index;
+	}
+}
@@ -0,0 +1,517 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A crash-recoverable record of the pending jobs in a {@link JobManager}.
+ * <p>
+ * When a journal is attached to a JobManager (see
+ * {@link JobManager#setJournal(JobJournal)}), every submitted job that
+ * implements <code>java.io.Serializable</code> is appended to a
+ * memory-mapped file, and a short record is appended when that job finishes,
+ * fails, is cancelled or is skipped. If the process dies, the jobs that were
+ * still pending are available from {@link #getRecoveredJobs()} the next time
+ * the journal is opened:
+ * 
+ * <pre>
+ * JobJournal journal = new JobJournal(file);
+ * JobManager manager = new JobManager(4);
+ * manager.setJournal(journal);
+ * manager.addJob(journal.getRecoveredJobs());
+ * </pre>
+ * <p>
+ * Because <code>Job</code> itself is not serializable, a job's fields are
+ * restored by its subclass's serialization. The journal separately preserves
+ * the name, description, priority, blocking flag, resource class and any
+ * dependencies on other journaled jobs.
+ * <p>
+ * Writing to the mapped file is only a memory copy. The file is forced to
+ * the storage device at most once per flush interval, so many submissions
+ * share one fsync. (If the process crashes the operating system still writes
+ * the mapped pages; the flush interval only matters if the whole machine
+ * fails.) The file is compacted, so it only contains the jobs that are still
+ * pending, when it fills up or when a flush finds that most of it describes
+ * jobs that are no longer pending. Each journal has its own daemon thread
+ * that flushes (and, if necessary, compacts) the file. Compacting may also
+ * happen on a thread that is submitting a job, but never while the
+ * JobManager's queue is locked.
+ */
+public class JobJournal {
+
+	private static final int MAGIC = 0x4A4F424A;
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 8;
+
+	/** The size of a record's length, checksum, type and id. */
+	private static final int RECORD_HEADER_SIZE = 4 + 4 + 1 + 8;
+
+	private static final byte TYPE_SUBMITTED = 1;
+	private static final byte TYPE_DONE = 2;
+
+	private static final int INITIAL_SIZE = 1024 * 1024;
+
+	/**
+	 * The number of bytes of finished records that a flush tolerates before it
+	 * compacts the file.
+	 */
+	private static final int COMPACTION_THRESHOLD = 256 * 1024;
+
+	private final File file;
+	private final long flushIntervalMillis;
+	private FileChannel channel;
+	private MappedByteBuffer buffer;
+
+	/** The offset where the next record is written. */
+	private int position;
+	private long nextId = 1;
+	private boolean flushScheduled = false;
+	private boolean closed = false;
+
+	/**
+	 * The complete bytes (including the record header) of every submission
+	 * that is still pending, in the order they were written.
+	 */
+	private final Map<Long, byte[]> liveRecords = new LinkedHashMap<Long, byte[]>();
+
+	/** The total length of {@link #liveRecords}. */
+	private int liveBytes = 0;
+
+	/** The journal id of every pending job. */
+	private final Map<Job, Long> idsByJob = new IdentityHashMap<Job, Long>();
+
+	/** The jobs recovered when this journal was opened. */
+	private final List<Job> recoveredJobs;
+
+	/**
+	 * The thread that flushes this journal. This is separate from the
+	 * {@link JobTimer}, because flushing and compacting block on disk I/O.
+	 */
+	private final ScheduledThreadPoolExecutor flushExecutor = new ScheduledThreadPoolExecutor(
+			1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "JobJournal");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private final Runnable flushRunnable = new Runnable() {
+		public void run() {
+			synchronized (JobJournal.this) {
+				flushScheduled = false;
+				if (closed)
+					return;
+				int deadBytes = position - HEADER_SIZE - liveBytes;
+				if (deadBytes > COMPACTION_THRESHOLD && deadBytes > liveBytes) {
+					try {
+						// rewriting the file also makes it durable
+						rewrite(buffer.capacity());
+						return;
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+				buffer.force();
+			}
+		}
+	};
+
+	/**
+	 * Open a journal that flushes to the storage device every 20 ms.
+	 * 
+	 * @param file
+	 *            the journal file. If this exists then the pending jobs it
+	 *            describes are available from {@link #getRecoveredJobs()}.
+	 */
+	public JobJournal(File file) throws IOException {
+		this(file, 20);
+	}
+
+	/**
+	 * Open a journal.
+	 * 
+	 * @param file
+	 *            the journal file. If this exists then the pending jobs it
+	 *            describes are available from {@link #getRecoveredJobs()}.
+	 * @param flushIntervalMillis
+	 *            the maximum number of milliseconds between a write and the
+	 *            fsync that makes it durable.
+	 */
+	public JobJournal(File file, long flushIntervalMillis) throws IOException {
+		if (flushIntervalMillis < 0)
+			throw new IllegalArgumentException("flushIntervalMillis ("
+					+ flushIntervalMillis + ") must not be negative");
+		this.file = file;
+		this.flushIntervalMillis = flushIntervalMillis;
+		if (file.exists() && file.length() > 0)
+			readRecords();
+		recoveredJobs = Collections.unmodifiableList(restoreJobs());
+		synchronized (this) {
+			rewrite(INITIAL_SIZE);
+		}
+	}
+
+	/**
+	 * Return the jobs that were pending when this journal was last used, in
+	 * the order they were submitted. These should be resubmitted to the
+	 * JobManager this journal is attached to; they keep their existing
+	 * records in the journal.
+	 */
+	public List<Job> getRecoveredJobs() {
+		return recoveredJobs;
+	}
+
+	/** Return the journal file. */
+	public File getFile() {
+		return file;
+	}
+
+	/**
+	 * Read every valid record from the file into {@link #liveRecords}. This
+	 * stops at the first record that is incomplete or corrupt, which is where
+	 * the previous process stopped writing.
+	 */
+	private void readRecords() throws IOException {
+		byte[] data = Files.readAllBytes(file.toPath());
+		ByteBuffer b = ByteBuffer.wrap(data);
+		if (data.length < HEADER_SIZE || b.getInt() != MAGIC)
+			throw new IOException("the file " + file.getAbsolutePath()
+					+ " is not a job journal");
+		int version = b.getInt();
+		if (version != VERSION)
+			throw new IOException("unsupported job journal version: "
+					+ version);
+		while (b.remaining() >= RECORD_HEADER_SIZE) {
+			int start = b.position();
+			int length = b.getInt();
+			int checksum = b.getInt();
+			if (length < 9 || length > b.remaining())
+				break;
+			CRC32 crc = new CRC32();
+			crc.update(data, b.position(), length);
+			if ((int) crc.getValue() != checksum)
+				break;
+			byte type = b.get();
+			long id = b.getLong();
+			b.position(b.position() + length - 9);
+			nextId = Math.max(nextId, id + 1);
+			if (type == TYPE_SUBMITTED) {
+				byte[] record = new byte[b.position() - start];
+				System.arraycopy(data, start, record, 0, record.length);
+				liveRecords.put(id, record);
+			} else if (type == TYPE_DONE) {
+				liveRecords.remove(id);
+			}
+		}
+	}
+
+	/**
+	 * Deserialize the jobs in {@link #liveRecords}. Jobs that can't be
+	 * deserialized (for example, because their class no longer exists) are
+	 * dropped from the journal.
+	 */
+	private List<Job> restoreJobs() {
+		List<Job> returnValue = new ArrayList<Job>();
+		Map<Long, Job> jobsById = new LinkedHashMap<Long, Job>();
+		Map<Job, long[]> dependencyIds = new IdentityHashMap<Job, long[]>();
+		List<Long> invalidIds = new ArrayList<Long>();
+		for (Map.Entry<Long, byte[]> entry : liveRecords.entrySet()) {
+			byte[] record = entry.getValue();
+			try (DataInputStream in = new DataInputStream(
+					new ByteArrayInputStream(record, RECORD_HEADER_SIZE,
+							record.length - RECORD_HEADER_SIZE))) {
+				long[] dependencies = new long[in.readInt()];
+				for (int a = 0; a < dependencies.length; a++) {
+					dependencies[a] = in.readLong();
+				}
+				String name = readString(in);
+				String description = readString(in);
+				int priority = in.readInt();
+				boolean blocking = in.readBoolean();
+				String resourceClass = readString(in);
+				Job job;
+				try (ObjectInputStream objIn = new ObjectInputStream(in)) {
+					job = (Job) objIn.readObject();
+				}
+				job.setName(name);
+				job.setDescription(description);
+				job.setPriority(priority);
+				job.setBlocking(blocking);
+				job.setResourceClass(resourceClass);
+				jobsById.put(entry.getKey(), job);
+				dependencyIds.put(job, dependencies);
+			} catch (Exception e) {
+				e.printStackTrace();
+				invalidIds.add(entry.getKey());
+			}
+		}
+		for (Long id : invalidIds) {
+			liveRecords.remove(id);
+		}
+		for (byte[] record : liveRecords.values()) {
+			liveBytes += record.length;
+		}
+		for (Map.Entry<Long, Job> entry : jobsById.entrySet()) {
+			Job job = entry.getValue();
+			List<Job> dependencies = new ArrayList<Job>();
+			for (long dependencyId : dependencyIds.get(job)) {
+				// a dependency that isn't pending has already finished
+				Job dependency = jobsById.get(dependencyId);
+				if (dependency != null)
+					dependencies.add(dependency);
+			}
+			job.setDependencies(dependencies);
+			idsByJob.put(job, entry.getKey());
+			returnValue.add(job);
+		}
+		return returnValue;
+	}
+
+	/**
+	 * Replace the file with one that only contains {@link #liveRecords}.
+	 * 
+	 * @param minimumSize
+	 *            the minimum size of the new mapped region.
+	 */
+	private void rewrite(int minimumSize) throws IOException {
+		int liveSize = HEADER_SIZE + liveBytes;
+		int size = Math.max(minimumSize, INITIAL_SIZE);
+		while (size < 2 * liveSize) {
+			size *= 2;
+		}
+
+		File tempFile = new File(file.getAbsolutePath() + ".tmp");
+		try (FileChannel tempChannel = FileChannel.open(tempFile.toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			header.putInt(MAGIC).putInt(VERSION).flip();
+			while (header.hasRemaining())
+				tempChannel.write(header);
+			for (byte[] record : liveRecords.values()) {
+				ByteBuffer b = ByteBuffer.wrap(record);
+				while (b.hasRemaining())
+					tempChannel.write(b);
+			}
+			tempChannel.force(true);
+		}
+
+		if (channel != null)
+			channel.close();
+		Files.move(tempFile.toPath(), file.toPath(),
+				StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+		channel = FileChannel.open(file.toPath(), StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+		buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+		position = liveSize;
+	}
+
+	/**
+	 * Remove the records of finished jobs from the journal file.
+	 */
+	public synchronized void compact() throws IOException {
+		checkOpen();
+		rewrite(buffer.capacity());
+	}
+
+	/**
+	 * Serialize a job's state. This is called before the job is submitted,
+	 * without holding any locks.
+	 * 
+	 * @return the serialized job, or null if this job isn't journaled.
+	 */
+	byte[] serialize(Job job) {
+		if (!(job instanceof Serializable))
+			return null;
+		synchronized (this) {
+			// a recovered job already has a record
+			if (idsByJob.containsKey(job))
+				return null;
+		}
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+				out.writeObject(job);
+			}
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException("the job \"" + job.getName()
+					+ "\" could not be serialized", e);
+		}
+	}
+
+	/**
+	 * Record that a job was submitted.
+	 * 
+	 * @param job
+	 *            the job that was submitted.
+	 * @param serializedJob
+	 *            the value {@link #serialize(Job)} returned.
+	 * @return the id of this job in the journal, or 0 if this job isn't
+	 *         journaled.
+	 */
+	synchronized long submitted(Job job, byte[] serializedJob) {
+		if (closed)
+			return 0;
+		Long existingId = idsByJob.get(job);
+		if (existingId != null)
+			return existingId;
+		if (serializedJob == null)
+			return 0;
+		long id = nextId++;
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			List<Long> dependencies = new ArrayList<Long>();
+			for (Job dependency : job.getDependencies()) {
+				Long dependencyId = idsByJob.get(dependency);
+				if (dependencyId != null)
+					dependencies.add(dependencyId);
+			}
+			out.writeInt(dependencies.size());
+			for (long dependencyId : dependencies) {
+				out.writeLong(dependencyId);
+			}
+			writeString(out, job.getName());
+			writeString(out, job.getDescription());
+			out.writeInt(job.getPriority());
+			out.writeBoolean(job.isBlocking());
+			writeString(out, job.getResourceClass());
+			out.write(serializedJob);
+			out.flush();
+			byte[] record = createRecord(TYPE_SUBMITTED, id,
+					bytes.toByteArray());
+			liveRecords.put(id, record);
+			liveBytes += record.length;
+			idsByJob.put(job, id);
+			write(record);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return id;
+	}
+
+	/**
+	 * Record that a job finished, failed, was cancelled or was skipped.
+	 * 
+	 * @param id
+	 *            the id {@link #submitted(Job, byte[])} returned.
+	 */
+	synchronized void done(Job job, long id) {
+		if (closed || id == 0)
+			return;
+		byte[] record = liveRecords.remove(id);
+		if (record == null)
+			return;
+		liveBytes -= record.length;
+		idsByJob.remove(job);
+		try {
+			write(createRecord(TYPE_DONE, id, new byte[0]));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static void writeString(DataOutputStream out, String s)
+			throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null)
+			out.writeUTF(s);
+	}
+
+	private static String readString(DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static byte[] createRecord(byte type, long id, byte[] payload) {
+		int length = 1 + 8 + payload.length;
+		ByteBuffer b = ByteBuffer.allocate(8 + length);
+		b.putInt(length);
+		b.putInt(0);
+		b.put(type);
+		b.putLong(id);
+		b.put(payload);
+		CRC32 crc = new CRC32();
+		crc.update(b.array(), 8, length);
+		b.putInt(4, (int) crc.getValue());
+		return b.array();
+	}
+
+	/**
+	 * Append a record to the mapped file, compacting or growing the file if
+	 * necessary, and schedule a flush.
+	 */
+	private void write(byte[] record) throws IOException {
+		// leave room for the zero length that marks the end of the journal
+		if (position + record.length + 4 > buffer.capacity()) {
+			rewrite(buffer.capacity());
+			if (position + record.length + 4 > buffer.capacity())
+				rewrite(2 * (position + record.length + 4));
+		}
+		// mark the end first, so a torn write is never mistaken for a record
+		buffer.putInt(position + record.length, 0);
+		ByteBuffer b = buffer.duplicate();
+		b.position(position);
+		b.put(record);
+		position += record.length;
+
+		if (!flushScheduled) {
+			flushScheduled = true;
+			flushExecutor.schedule(flushRunnable, flushIntervalMillis,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void checkOpen() {
+		if (closed)
+			throw new IllegalStateException("this journal is closed");
+	}
+
+	/**
+	 * Flush and close this journal. Jobs that are still pending remain in
+	 * the file, so they are recovered the next time it is opened.
+	 */
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		flushExecutor.shutdown();
+		buffer.force();
+		channel.close();
+	}
+}
@@ -10,19 +10,39 @@
  */
 package com.pump.job;
 
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.AbstractCollection;
 import java.util.ArrayList;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
@@ -32,20 +52,182 @@ import javax.swing.event.ChangeListener;
  * line but is classified as being dependent on other (unfinished) jobs, then it
  * is skipped until those jobs are processed.
  * <p>
- * TODO: This does not resolve circular dependencies.
+ * Jobs that are ready to start are kept in an indexed heap, so choosing the
+ * next job costs O(log n). Jobs that are waiting on dependencies are parked
+ * separately: each parked job counts its unfinished dependencies, and it moves
+ * into the heap as soon as the last of those dependencies finishes (or is
+ * cancelled). Parked jobs are never rescanned.
+ * <p>
+ * Dependencies are validated when jobs are submitted: every unfinished
+ * dependency must already have been submitted (to any JobManager) or be
+ * submitted in the same call, and the jobs submitted together must not
+ * depend on each other in a cycle. Since a job can only depend on jobs that
+ * were submitted before it, this check only needs to visit the edges that
+ * are being added.
+ * <p>
+ * The {@link ExecutionMode} determines how worker threads are organized.
  * <p>
  * This relies on the <code>java.util.concurrent.Executor</code> and related
  * classes, but it offers more useful feedback to help keep UIs up-to-date.
  *
  */
 public class JobManager {
+	/**
+	 * This determines how a JobManager's worker threads are organized.
+	 */
+	public static enum ExecutionMode {
+		/**
+		 * Jobs are executed by a fixed pool of threads that all take jobs from
+		 * the same shared queue. This is the default.
+		 */
+		THREAD_POOL,
+
+		/**
+		 * Jobs are executed by a work-stealing <code>ForkJoinPool</code>.
+		 * <p>
+		 * When a running Job submits a new job to its own JobManager (and that
+		 * job has no unfinished dependencies and no replacement id), the new job
+		 * is pushed onto the submitting worker's local deque instead of the
+		 * shared queue. Idle workers steal from other workers' deques, so
+		 * fine-grained jobs that spawn more jobs rarely touch the shared queue's
+		 * lock. The trade-off is that locally submitted jobs are not ordered by
+		 * priority relative to the shared queue.
+		 * <p>
+		 * The worker threads in this mode are daemon threads.
+		 */
+		WORK_STEALING,
+
+		/**
+		 * Each job is executed on its own virtual thread.
+		 * <p>
+		 * The thread count is the maximum number of CPU-bound jobs that may run
+		 * at once. Jobs that identify themselves as blocking (see
+		 * {@link Job#isBlocking()}) are exempt from that limit, because a
+		 * virtual thread that is blocked on I/O does not tie up a platform
+		 * thread. Jobs still start in order of priority.
+		 * <p>
+		 * Virtual threads require Java 21. On earlier versions of Java this
+		 * mode behaves exactly like {@link #THREAD_POOL}.
+		 */
+		VIRTUAL_THREADS,
+
+		/**
+		 * Jobs that implement <code>java.io.Serializable</code> are executed in
+		 * child JVMs, so they don't share this JVM's heap and garbage
+		 * collector.
+		 * <p>
+		 * The thread count is the number of child processes. The queue,
+		 * priorities, dependencies and listeners all stay in this process:
+		 * each worker thread takes the next job from the queue when its child
+		 * is idle, sends a copy of the job to the child, and waits for the
+		 * result. Errors thrown in the child are reported to listeners as
+		 * usual, and cancelling a job cancels the child's copy.
+		 * <p>
+		 * Only the child's copy of a job is modified when it runs, so jobs
+		 * should write their results somewhere both processes can see (such
+		 * as a file). The exception is a {@link ResultJob}, whose result is
+		 * sent back (so it must be Serializable). Jobs that aren't
+		 * Serializable run in this process.
+		 * 
+		 * @see JobManager#setWorkerProcessArguments(String...)
+		 */
+		PROCESS_POOL
+	}
+
+	/**
+	 * This determines what {@link JobManager#addJob(Job...)} does when the
+	 * number of pending jobs has reached the JobManager's capacity.
+	 * 
+	 * @see JobManager#setCapacity(int, OverflowPolicy)
+	 */
+	public static enum OverflowPolicy {
+		/**
+		 * The submitting thread waits until a pending job starts or is
+		 * removed. This is the default.
+		 * <p>
+		 * A job that is submitted by a job running in the same JobManager is
+		 * run on the submitting thread instead, because if every worker waited
+		 * for capacity then nothing would free it.
+		 */
+		BLOCK,
+
+		/**
+		 * <code>addJob</code> throws a
+		 * <code>java.util.concurrent.RejectedExecutionException</code>, and
+		 * none of the jobs passed to it are added.
+		 */
+		REJECT,
+
+		/**
+		 * The pending job that would run last is skipped to make room. If the
+		 * new job would run after every other pending job, then the new job is
+		 * skipped instead. Skipped jobs are reported to
+		 * {@link Listener#jobSkipped(JobManager, Job...)}.
+		 * <p>
+		 * Only jobs that are ready to start are dropped. Finding the lowest
+		 * priority job costs O(n). If other pending jobs depend on the dropped
+		 * job, then it is also cancelled, so they don't wait for it forever.
+		 */
+		DROP_LOWEST_PRIORITY,
+
+		/**
+		 * The new job runs immediately on the submitting thread, which slows
+		 * down the producer. A job that still has unfinished dependencies is
+		 * queued anyway, because it can't run yet.
+		 */
+		CALLER_RUNS
+	}
+
+	/**
+	 * Return true if this Java runtime supports virtual threads.
+	 * <p>
+	 * This project targets Java 11, so virtual threads are accessed through
+	 * reflection.
+	 */
+	public static boolean isVirtualThreadSupported() {
+		synchronized (ExecutionMode.class) {
+			if (virtualThreadSupported == null) {
+				ExecutorService s = createVirtualThreadExecutor();
+				virtualThreadSupported = s != null;
+				if (s != null)
+					s.shutdown();
+			}
+			return virtualThreadSupported;
+		}
+	}
+
+	private static Boolean virtualThreadSupported;
+
+	/**
+	 * Return a new <code>ExecutorService</code> that starts a virtual thread
+	 * for each task, or null if this runtime doesn't support virtual threads.
+	 */
+	private static ExecutorService createVirtualThreadExecutor() {
+		try {
+			Method method = Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) method.invoke(null);
+		} catch (Exception e) {
+			// this is either Java < 21, or Java 19/20 without preview features
+			return null;
+		}
+	}
+
 	/**
 	 * This offers a model for simple notification of what this JobManager is
 	 * currently doing.
 	 */
 	public static interface Listener {
 		/**
-		 * This is called when an error occurs executing a job.
+		 * This is called when an error occurs executing a job. When this is
+		 * invoked: the active job count of the JobManager will have changed.
+		 * <p>
+		 * If the job has a {@link RetryPolicy} this is called for every
+		 * attempt that fails. If the job will be retried then
+		 * {@link #jobQueued(JobManager, Job...)} follows, and
+		 * {@link #jobAdded(JobManager, Job...)} is called again when the next
+		 * attempt starts. So every call to <code>jobAdded</code> is matched
+		 * by one call to <code>jobRemoved</code> or <code>jobError</code>.
 		 * <p>
 		 * This is probably invoked on a thread that executes jobs, so this
 		 * should not perform EDT work and should probably be very light
@@ -128,376 +310,2433 @@ public class JobManager {
 		}
 	}
 
-	private static final int ERROR = -1;
-	private static final int ADD = 0;
-	private static final int REMOVE = 1;
-	private static final int SKIP = 2;
-	private static final int QUEUE = 3;
+	static final int ERROR = -1;
+	static final int ADD = 0;
+	static final int REMOVE = 1;
+	static final int SKIP = 2;
+	static final int QUEUE = 3;
 
-	private Runnable processQueueRunnable = new Runnable() {
-		public void run() {
-			while (true) {
-				Job job = null;
-				synchronized (active) {
-					job = popHighestPriorityAvailableJob();
-					if (job == null)
-						return;
-					active.add(job);
-				}
-				if (job != null) {
-					int type = ERROR;
-					Throwable throwable = null;
-					try {
-						if (!job.isCancelled()) {
-							fireListeners(ADD, job);
-							job.run();
-							type = REMOVE;
-						} else {
-							type = SKIP;
-						}
-					} catch (Throwable t) {
-						throwable = t;
-					} finally {
-						synchronized (active) {
-							active.remove(job);
-						}
-						synchronized (queue) {
-							String id = job.getReplacementId();
-							if (id != null)
-								jobsByReplacementId.remove(id);
-						}
-						if (throwable != null) {
-							fireErrorListener(job, throwable);
-						} else {
-							fireListeners(type, job);
-						}
-					}
-				}
-			}
-		}
-	};
+	/**
+	 * This listens to an unfinished dependency and tracks the jobs that are
+	 * waiting for it.
+	 * <p>
+	 * The listener is notified while the dependency's properties are locked,
+	 * so it only records the event and wakes a worker: the queue is updated
+	 * later by {@link JobManager#processFinishedDependencies()}.
+	 */
+	private class Dependency implements ActionListener {
+		final Job job;
+		final List<JobHandle> waitingHandles = new ArrayList<JobHandle>();
 
-	private final static Comparator<Integer> reverseIntComparator = new Comparator<Integer>() {
+		Dependency(Job job) {
+			this.job = job;
+		}
 
-		public int compare(Integer o1, Integer o2) {
-			if (o1.intValue() < o2.intValue()) {
-				return 1;
-			} else if (o1.intValue() > o2.intValue()) {
-				return -1;
-			}
-			return 0;
+		@Override
+		public void actionPerformed(ActionEvent e) {
+			finishedDependencies.add(this);
+			wakeWorkers(1);
 		}
+	}
 
-	};
+	/**
+	 * A job that was pushed onto a worker's local deque in
+	 * {@link ExecutionMode#WORK_STEALING} mode.
+	 */
+	private class LocalJob extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
 
-	private final TreeMap<Integer, List<Job>> queue = new TreeMap<Integer, List<Job>>(
-			reverseIntComparator);
-	private final Set<Job> active = new HashSet<Job>();
-	private final int threadCount;
-	private final Map<String, Job> jobsByReplacementId = new HashMap<>();
+		final JobHandle handle;
 
-	transient List<Listener> listeners;
-	transient ExecutorService service;
+		LocalJob(JobHandle handle) {
+			this.handle = handle;
+		}
 
-	public JobManager(int threadCount) {
-		this.threadCount = threadCount;
+		@Override
+		protected void compute() {
+			// if this was removed then it was already reported as skipped
+			if (!forkedJobs.remove(handle))
+				return;
+			activate(handle.job);
+			pendingRemoved(handle);
+			capacityFreed();
+			runJob(handle, false);
+		}
 	}
 
-	/** Return the next Job that should be executed. */
-	private Job popHighestPriorityAvailableJob() {
-		synchronized (queue) {
-			Iterator<Integer> keyIter = queue.keySet().iterator();
-			while (keyIter.hasNext()) {
-				Integer key = keyIter.next();
-				List<Job> list = queue.get(key);
-				for (int a = 0; a < list.size(); a++) {
-					Job job = list.get(a);
-					if (isEligibleToStart(job)) {
-						list.remove(a);
-						if (list.size() == 0) {
-							queue.remove(key);
-						}
-						return job;
-					}
-				}
-			}
-			return null;
+	/**
+	 * Access to a work-stealing worker's local deque. The methods this needs
+	 * are only visible to subclasses of ForkJoinTask.
+	 */
+	private static abstract class LocalDeque extends ForkJoinTask<Void> {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * Return the task the current worker would run next from its own
+		 * deque, or null.
+		 */
+		static ForkJoinTask<?> peek() {
+			return peekNextLocalTask();
 		}
 	}
 
 	/**
-	 * Return true if a job is eligible to run. If there are any dependencies
-	 * declared in this Job, they must be finished before this job can start.
+	 * If the current thread is a work-stealing worker and the next job on its
+	 * local deque should run before every job in the queue, then run it.
+	 * Otherwise local jobs would wait until the queue is empty.
+	 * 
+	 * @return true if a local job was run.
 	 */
-	private boolean isEligibleToStart(Job job) {
-		Job[] dependencies = job.getDependencies();
-		for (Job d : dependencies) {
-			/*
-			 * Let cancelled jobs run. The Job.run() method checks for this
-			 * condition and will throw an exception. This way: the
-			 * JobManager.Listener will receive feedback that a job started,
-			 * even if it was destined to crash and fail.
-			 */
-			boolean ok = d.isCancelled() || d.isFinished();
-			if (!ok) {
+	private boolean runLocalJob() {
+		if (!isLocalWorker())
+			return false;
+		ForkJoinTask<?> task = LocalDeque.peek();
+		if (!(task instanceof LocalJob))
+			return false;
+		JobHandle handle = ((LocalJob) task).handle;
+		synchronized (queue) {
+			JobHandle next = queue.peekNext();
+			if (next != null && next.precedes(handle))
 				return false;
-			}
 		}
+		if (!task.tryUnfork())
+			return false;
+		task.quietlyInvoke();
 		return true;
 	}
 
-	/** Add a Listener to this JobManager. */
-	public synchronized boolean addListener(Listener l) {
-		if (listeners != null && listeners.contains(l))
-			return false;
-		if (listeners == null)
-			listeners = new ArrayList<Listener>();
-		if (l instanceof ChangeListenerWrapper) {
-			ChangeListenerWrapper incoming = (ChangeListenerWrapper) l;
-			// ugh, we have to do more exhaustive search:
-			for (Listener l2 : listeners) {
-				if (l2 instanceof ChangeListenerWrapper) {
-					ChangeListenerWrapper existing = (ChangeListenerWrapper) l2;
-					if (existing.changeListener == incoming.changeListener)
-						return false;
+	/**
+	 * This executes jobs from the queue until no job is available. Every
+	 * execution of this runnable is counted in {@link #scheduledWorkers}.
+	 * <p>
+	 * In {@link ExecutionMode#WORK_STEALING} mode this also runs the jobs on
+	 * the worker's local deque, in order of priority with the queue.
+	 */
+	private Runnable processQueueRunnable = new Runnable() {
+		public void run() {
+			while (true) {
+				if (runLocalJob())
+					continue;
+				JobHandle handle = popHighestPriorityAvailableJob();
+				if (handle != null) {
+					runJob(handle, true);
+				} else {
+					scheduledWorkers.decrementAndGet();
+					/*
+					 * If a job was queued after we polled but before we
+					 * decremented, then whoever queued it may have decided
+					 * not to wake anyone.
+					 */
+					if (!isJobAvailable() || !reserveWorker())
+						return;
 				}
 			}
 		}
-		listeners.add(l);
-		return true;
-	}
+	};
 
-	/** Remove a Listener to this JobManager. */
-	public synchronized boolean removeListener(Listener l) {
-		if (listeners == null)
-			return false;
-		if (l instanceof ChangeListenerWrapper) {
-			ChangeListenerWrapper incoming = (ChangeListenerWrapper) l;
-			// ugh, we have to do more exhaustive search:
-			for (int a = 0; a < listeners.size(); a++) {
-				if (listeners.get(a) instanceof ChangeListenerWrapper) {
-					ChangeListenerWrapper existing = (ChangeListenerWrapper) listeners
-							.get(a);
-					if (existing.changeListener == incoming.changeListener) {
-						listeners.remove(a);
-						return true;
-					}
+	/**
+	 * Execute a job that was just added to the set of active jobs.
+	 * 
+	 * @param polled
+	 *            true if this handle was polled from the queue.
+	 */
+	private void runJob(JobHandle handle, boolean polled) {
+		Job job = handle.job;
+		int type = ERROR;
+		Throwable throwable = null;
+		boolean retry = false;
+		try {
+			if (!job.isCancelled()) {
+				fireListeners(ADD, job);
+				long startTime = System.nanoTime();
+				handle.attempt++;
+				JobHandle callerHandle = currentHandle.get();
+				currentHandle.set(handle);
+				try {
+					RemoteWorkerPool workers = job instanceof Serializable ? remoteWorkers
+							: null;
+					job.run(workers, handle.retryPolicy, handle.attempt);
+				} catch (Throwable t) {
+					// the job is only left unfinished if it should be retried
+					retry = handle.retryPolicy != null && !job.isFinished();
+					throw t;
+				} finally {
+					currentHandle.set(callerHandle);
+					long endTime = System.nanoTime();
+					statistics.record(handle.priority, startTime
+							- handle.readyTime, endTime - startTime);
 				}
+				type = REMOVE;
+			} else {
+				type = SKIP;
+				JobEvents.skipped(job);
+			}
+		} catch (Throwable t) {
+			throwable = t;
+		} finally {
+			if (retry) {
+				scheduleRetry(handle, polled, throwable);
+			} else {
+				deactivate(job);
+				finishJob(handle, polled, type, throwable);
 			}
 		}
-		return listeners.remove(l);
 	}
 
-	/** Add one or more a Job to the job queue. */
-	public void addJob(Job... jobs) {
-		synchronized (queue) {
-			for (Job job : jobs) {
-				if (job.isFinished()) {
-					System.err
-							.println("JobManager warning: the job \""
-									+ job.getName()
-									+ "\" was classified as finished, but it is being resubmitted. Resetting status to unfinished.");
-					job.properties.set(Job.FINISHED, false);
-				}
-				if (job.isCancelled()) {
-					System.err
-							.println("JobManager warning: the job \""
-									+ job.getName()
-									+ "\" was classified as cancelled, but it is being resubmitted. Resetting status to uncancelled.");
-					job.properties.set(Job.CANCELLED, false);
-				}
-			}
-			for (Job job : jobs) {
-				String replacementId = job.getReplacementId();
-				if (replacementId != null) {
-					Job oldJob = jobsByReplacementId.get(replacementId);
-					if (oldJob != null)
-						oldJob.cancel();
-					jobsByReplacementId.put(replacementId, job);
-				}
-				Integer key = new Integer(job.getPriority());
-				List<Job> list = queue.get(key);
-				if (list == null) {
-					list = new LinkedList<Job>();
-					queue.put(key, list);
-				}
-				list.add(job);
-				if (service == null)
-					service = Executors.newFixedThreadPool(threadCount);
-				service.execute(processQueueRunnable);
+	/**
+	 * Release a job that will not run again, and notify listeners.
+	 */
+	private void finishJob(JobHandle handle, boolean polled, int type,
+			Throwable throwable) {
+		Job job = handle.job;
+		journalDone(handle);
+		String id = job.getReplacementId();
+		List<JobHandle> duplicates = null;
+		boolean released = false;
+		if (id != null || polled || handle.cacheKey != null) {
+			synchronized (queue) {
+				if (id != null)
+					jobsByReplacementId.remove(id, handle);
+				if (polled)
+					released = release(handle);
+				if (handle.cacheKey != null)
+					duplicates = finishInFlight(handle, type == REMOVE
+							&& throwable == null);
 			}
 		}
-		fireListeners(QUEUE, jobs);
+		if (released)
+			wakeWorkers(1);
+		if (throwable != null) {
+			fireErrorListener(job, throwable);
+		} else {
+			fireListeners(type, job);
+		}
+		if (duplicates != null)
+			completeDuplicates(handle, duplicates, type, throwable);
+		if (handle.cancelListener != null)
+			job.removeCancelListener(handle.cancelListener);
+		childDone(handle, throwable);
 	}
 
-	/** Return all jobs that are currently executing. */
-	public Job[] getActiveJobs() {
-		synchronized (active) {
-			return active.toArray(new Job[active.size()]);
-		}
+	/**
+	 * Give back the lane slot of a handle that was polled from the queue.
+	 * This must be called while synchronized against the queue.
+	 * <p>
+	 * The handle may have been polled by a thread that was joining its
+	 * children rather than by a worker, so no worker may be scheduled to
+	 * start the jobs that were waiting for this slot.
+	 * 
+	 * @return true if a worker should be woken because a job can start now.
+	 */
+	private boolean release(JobHandle handle) {
+		queue.release(handle);
+		return queue.isJobAvailable();
 	}
 
-	/** Return all jobs that are waiting to execute, in order of execution. */
-	public Job[] getPendingJobs() {
-		List<Job> list = new ArrayList<Job>();
+	/**
+	 * Put a job that failed into {@link #delayedJobs}, report the failed
+	 * attempt, and move the job back into the queue after its retry policy's
+	 * delay. The job keeps its journal record, replacement id and cache key
+	 * while it waits.
+	 * 
+	 * @param polled
+	 *            true if this handle was polled from the queue.
+	 * @param throwable
+	 *            the exception the failed attempt threw.
+	 */
+	private void scheduleRetry(final JobHandle handle, boolean polled,
+			Throwable throwable) {
+		boolean released = false;
 		synchronized (queue) {
-			Iterator<Integer> iter = queue.descendingKeySet().iterator();
-			while (iter.hasNext()) {
-				Integer key = iter.next();
-				List<Job> jobs = queue.get(key);
-				list.addAll(jobs);
-			}
+			if (polled)
+				released = release(handle);
+			delayedJobs.add(handle);
+			pendingAdded(handle);
 		}
-		return list.toArray(new Job[list.size()]);
+		if (released)
+			wakeWorkers(1);
+		deactivate(handle.job);
+		// report the failed attempt before the next attempt can start
+		fireErrorListener(handle.job, throwable);
+		fireListeners(QUEUE, handle.job);
+		long delay = handle.retryPolicy.getDelayMillis(handle.attempt);
+		JobTimer.schedule(new Runnable() {
+			public void run() {
+				synchronized (queue) {
+					// if this was removed then it was already reported
+					if (!delayedJobs.remove(handle))
+						return;
+					handle.readyTime = System.nanoTime();
+					queue.add(handle);
+				}
+				wakeWorkers(1);
+			}
+		}, delay * 1000000L);
 	}
 
 	/**
-	 * Returns true if there are any jobs currently being processed.
+	 * A {@link ResultJob} that is queued or running, and the jobs with the
+	 * same cache key that are waiting for its result.
 	 */
-	public boolean isActive() {
-		synchronized (active) {
-			return active.size() > 0;
+	private static class InFlight {
+		final JobHandle handle;
+		final List<JobHandle> duplicates = new ArrayList<JobHandle>();
+
+		InFlight(JobHandle handle) {
+			this.handle = handle;
 		}
 	}
 
 	/**
-	 * Adds a ChangeListener to this JobManager. This is notified of the same
-	 * events as a {@link Listener}; it's just more generic.
+	 * Check a new job against the result cache. This must be called while
+	 * synchronized against the queue.
 	 * 
-	 * @param l
-	 *            this listener will be notified when that state of this manager
-	 *            changes (active/inactive) and when jobs finish (or stop)
-	 *            running.
+	 * @return true if the job doesn't need to be queued: either its result
+	 *         was cached, or it is waiting for an identical job.
 	 */
-	public boolean addChangeListener(ChangeListener l) {
-		return addListener(new ChangeListenerWrapper(l));
+	private boolean memoize(JobHandle handle, List<JobHandle> cachedHandles) {
+		ResultCache cache = resultCache;
+		if (cache == null || !(handle.job instanceof ResultJob))
+			return false;
+		Object key = ((ResultJob<?>) handle.job).getCacheKey();
+		if (key == null)
+			return false;
+		Object result = cache.get(key);
+		if (result != null) {
+			((ResultJob<?>) handle.job).setResult(result);
+			cachedHandles.add(handle);
+			return true;
+		}
+		InFlight inFlight = jobsInFlight.get(key);
+		if (inFlight != null) {
+			inFlight.duplicates.add(handle);
+			return true;
+		}
+		jobsInFlight.put(key, new InFlight(handle));
+		handle.cacheKey = key;
+		return false;
 	}
 
 	/**
-	 * Remove a ChangeListener from this JobManager.
+	 * Stop tracking a {@link ResultJob} that other jobs may be waiting for,
+	 * and cache its result. This must be called while synchronized against
+	 * the queue.
+	 * 
+	 * @param successful
+	 *            true if the job finished successfully.
+	 * @return the jobs that were waiting for this job's result.
 	 */
-	public boolean removeChangeListener(ChangeListener l) {
-		return removeListener(new ChangeListenerWrapper(l));
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private List<JobHandle> finishInFlight(JobHandle handle,
+			boolean successful) {
+		Object key = handle.cacheKey;
+		handle.cacheKey = null;
+		InFlight inFlight = jobsInFlight.get(key);
+		if (inFlight == null || inFlight.handle != handle)
+			return null;
+		jobsInFlight.remove(key);
+		ResultCache cache = resultCache;
+		if (successful && cache != null) {
+			ResultJob job = (ResultJob) handle.job;
+			Object result = job.getResult();
+			if (result != null)
+				cache.put(key, result, job.getResultWeight(result));
+		}
+		return inFlight.duplicates;
 	}
 
 	/**
-	 * Returns the number of jobs in this JobManager.
+	 * Finish the jobs that were waiting for an identical job. If that job
+	 * was skipped, then these jobs are resubmitted.
 	 * 
-	 * @param includeActiveJobs
-	 *            if true then this also includes the number of active jobs. If
-	 *            false then this only includes pending jobs that are not
-	 *            currently being processed. (This is no way accounts for
-	 *            completed jobs.)
-	 * @return if false then this includes only the pending jobs that have not
-	 *         started. If true then this returns the pending jobs + the current
-	 *         job.
+	 * @param type
+	 *            the type of event the original job reported.
+	 * @param throwable
+	 *            the exception the original job threw, or null.
 	 */
-	public int getJobCount(boolean includeActiveJobs) {
-		int sum = 0;
-		synchronized (queue) {
-			Iterator<Integer> i = queue.keySet().iterator();
-			while (i.hasNext()) {
-				List<Job> list = queue.get(i.next());
-				sum += list.size();
-			}
-			if (includeActiveJobs) {
-				synchronized (active) {
-					sum += active.size();
-				}
+	private void completeDuplicates(JobHandle handle,
+			List<JobHandle> duplicates, int type, Throwable throwable) {
+		if (duplicates.isEmpty())
+			return;
+		Job[] jobs = new Job[duplicates.size()];
+		for (int a = 0; a < jobs.length; a++) {
+			jobs[a] = duplicates.get(a).job;
+		}
+		if (throwable == null && type != REMOVE) {
+			resubmit(duplicates);
+			return;
+		}
+		Object result = ((ResultJob<?>) handle.job).getResult();
+		for (Job job : jobs) {
+			if (throwable == null)
+				((ResultJob<?>) job).setResult(result);
+			job.properties.set(Job.FINISHED, true);
+		}
+		fireListeners(ADD, jobs);
+		if (throwable == null) {
+			fireListeners(REMOVE, jobs);
+		} else {
+			for (Job job : jobs) {
+				fireErrorListener(job, throwable);
 			}
 		}
-		return sum;
+		for (JobHandle duplicate : duplicates) {
+			journalDone(duplicate);
+			childDone(duplicate, throwable);
+		}
 	}
 
 	/**
-	 * Removes a pending job, triggering a <code>jobSkipped</code> notification.
-	 * This has no effect if the job is already in progress.
+	 * Return the handle of a job that the current thread is running.
 	 * 
-	 * @return true if the job was removed/skipped, false if the job was not
-	 *         found in the pending queue. (It might already be executing, or
-	 *         have otherwise finished.)
+	 * @throws IllegalStateException
+	 *             if the current thread is not running the job in a
+	 *             JobManager.
 	 */
-	public boolean removeJob(Job job) {
-		boolean returnValue = false;
-		try {
-			synchronized (queue) {
-				Iterator<Integer> i = queue.keySet().iterator();
-				while (i.hasNext() && (!returnValue)) {
-					List<Job> list = queue.get(i.next());
-					if (list.remove(job)) {
-						returnValue = true;
+	static JobHandle getRunningHandle(Job job) {
+		JobHandle handle = currentHandle.get();
+		if (handle == null || handle.job != job)
+			throw new IllegalStateException("the job \"" + job.getName()
+					+ "\" is not running in a JobManager on this thread");
+		return handle;
+	}
+
+	/**
+	 * Submit a job as a child of a running job.
+	 * 
+	 * @see Job#fork(Job)
+	 */
+	JobHandle fork(final JobHandle parent, Job child) {
+		validateDependencies(new Job[] { child });
+		boolean addListener = false;
+		synchronized (parent) {
+			if (parent.cancelListener == null) {
+				parent.cancelListener = new ActionListener() {
+					@Override
+					public void actionPerformed(ActionEvent e) {
+						cancelChildren(parent);
 					}
-				}
-			}
-			return returnValue;
-		} finally {
-			// invoke this outside of the sync lock
-			if (returnValue) {
-				fireListeners(SKIP, job);
+				};
+				addListener = true;
 			}
 		}
+		if (addListener)
+			parent.job.addCancelListener(parent.cancelListener);
+		JobHandle handle = submit(new Job[] { child },
+				new JobHandle[] { parent })[0];
+		// the parent may have been cancelled before our listener was added
+		if (parent.job.isCancelled())
+			child.cancel();
+		return handle;
 	}
 
-	private synchronized void fireErrorListener(Job job, Throwable t) {
-		if (listeners == null)
-			return;
-
-		for (Listener l : listeners) {
-			try {
-				l.jobError(JobManager.this, job, t);
-			} catch (Throwable t2) {
-				t2.printStackTrace();
-			}
+	/**
+	 * Record that a job was forked by a running job. This must be called
+	 * while synchronized against the queue.
+	 */
+	private static void adopt(JobHandle parent, JobHandle child) {
+		child.parent = parent;
+		synchronized (parent) {
+			if (parent.children == null)
+				parent.children = new LinkedHashSet<JobHandle>();
+			parent.children.add(child);
 		}
 	}
 
-	private synchronized void fireListeners(int type, Job... job) {
-		if (listeners == null)
+	/**
+	 * Record that a job finished or was skipped, and wake its parent if the
+	 * parent is joining its children.
+	 * 
+	 * @param throwable
+	 *            the exception the job threw, or null.
+	 */
+	private static void childDone(JobHandle handle, Throwable throwable) {
+		JobHandle parent = handle.parent;
+		if (parent == null)
 			return;
+		synchronized (parent) {
+			parent.children.remove(handle);
+			if (throwable != null && parent.childThrowable == null)
+				parent.childThrowable = throwable;
+			parent.notifyAll();
+		}
+	}
 
-		for (Listener l : listeners) {
-			try {
-				if (type == ADD) {
-					l.jobAdded(this, job);
-				} else if (type == REMOVE) {
-					l.jobRemoved(this, job);
-				} else if (type == SKIP) {
-					l.jobSkipped(this, job);
-				} else if (type == QUEUE) {
-					l.jobQueued(this, job);
-				} else {
-					throw new RuntimeException("Unrecognized type: " + type);
-				}
-			} catch (Throwable t) {
-				t.printStackTrace();
-			}
+	/**
+	 * Cancel every unfinished child of a job.
+	 */
+	private static void cancelChildren(JobHandle parent) {
+		JobHandle[] children;
+		synchronized (parent) {
+			if (parent.children == null)
+				return;
+			children = parent.children.toArray(new JobHandle[parent.children
+					.size()]);
+		}
+		for (JobHandle child : children) {
+			child.job.cancel();
 		}
 	}
 
 	/**
-	 * Remove all pending jobs.
+	 * Wait for the children of a job the current thread is running, if it
+	 * has any. This is called before a job is marked as finished, so a job
+	 * never finishes before its children.
 	 * 
-	 * @param cancelActiveJobs
-	 *            if true then this additionally cancels every active job.
+	 * @param failed
+	 *            if true then the children are cancelled first.
 	 */
-	public boolean removeAllJobs(boolean cancelActiveJobs) {
-		synchronized (queue) {
-			Iterator<Integer> i = queue.keySet().iterator();
-			while (i.hasNext()) {
-				List<Job> list = queue.get(i.next());
-				for (Job job : list) {
-					removeJob(job);
+	static void joinForkedJobs(Job job, boolean failed) {
+		JobHandle handle = currentHandle.get();
+		if (handle == null || handle.job != job)
+			return;
+		synchronized (handle) {
+			if (handle.children == null || handle.children.isEmpty())
+				return;
+		}
+		if (failed)
+			cancelChildren(handle);
+		handle.manager.joinChildren(handle);
+	}
+
+	/**
+	 * Wait until every child of a running job has finished or been skipped.
+	 * <p>
+	 * Instead of blocking while its children wait in the queue, this thread
+	 * runs them itself. So even if every worker is joining, the children
+	 * still make progress. A child that has a resource class is only run
+	 * when its resource class allows another job to start, so it still
+	 * respects its concurrency and rate limits.
+	 * <p>
+	 * If this thread is interrupted then this returns early and the
+	 * interrupt status is preserved.
+	 */
+	void joinChildren(JobHandle parent) {
+		while (true) {
+			JobHandle[] children;
+			synchronized (parent) {
+				if (parent.children == null || parent.children.isEmpty())
+					return;
+				children = parent.children.toArray(new JobHandle[parent.children
+						.size()]);
+			}
+			JobHandle next = null;
+			boolean polled = false;
+			boolean waitingChildren = false;
+			int releasedCount;
+			synchronized (queue) {
+				releasedCount = processFinishedDependencies();
+				for (JobHandle child : children) {
+					if (forkedJobs.remove(child)
+							|| (child.resourceClass == null && queue
+									.remove(child))) {
+						next = child;
+						break;
+					}
+					if (child.resourceClass != null && queue.contains(child)) {
+						if (queue.poll(child)) {
+							next = child;
+							polled = true;
+							break;
+						}
+						// it waits for a slot or a token
+						waitingChildren = true;
+					} else if (blockedJobs.contains(child)
+							|| delayedJobs.contains(child)) {
+						waitingChildren = true;
+					}
+				}
+			}
+			if (releasedCount > 0)
+				wakeWorkers(releasedCount);
+			if (next != null) {
+				activate(next.job);
+				pendingRemoved(next);
+				capacityFreed();
+				runJob(next, polled);
+				continue;
+			}
+			synchronized (parent) {
+				if (parent.children.isEmpty())
+					return;
+				try {
+					/*
+					 * Children that are waiting for dependencies, a retry or
+					 * their resource class don't notify us when they become
+					 * ready, so we check on them periodically.
+					 */
+					parent.wait(waitingChildren ? 10 : 0);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Submit the jobs of handles that were removed without running again, so
+	 * they run on their own. Each new handle keeps the parent (if any) of the
+	 * handle it replaces.
+	 */
+	private void resubmit(List<JobHandle> handles) {
+		Job[] jobs = new Job[handles.size()];
+		JobHandle[] parents = new JobHandle[jobs.length];
+		for (int a = 0; a < jobs.length; a++) {
+			jobs[a] = handles.get(a).job;
+			parents[a] = handles.get(a).parent;
+		}
+		submit(jobs, parents);
+		for (JobHandle handle : handles) {
+			childDone(handle, null);
+		}
+	}
+
+	/**
+	 * The jobs that are eligible to start. This is also the lock that guards
+	 * {@link #blockedJobs}, {@link #waitingJobs}, {@link #jobsByReplacementId}
+	 * and {@link #sequenceCounter}.
+	 */
+	private final ReadyQueue queue;
+
+	/**
+	 * The jobs that are waiting for their dependencies to finish, in the order
+	 * they were submitted.
+	 */
+	private final Set<JobHandle> blockedJobs = new LinkedHashSet<JobHandle>();
+
+	/** The blocked jobs, keyed by each of their unfinished dependencies. */
+	private final Map<Job, Dependency> waitingJobs = new HashMap<Job, Dependency>();
+
+	/**
+	 * Dependencies that have finished (or been cancelled) since the queue was
+	 * last updated.
+	 */
+	private final ConcurrentLinkedQueue<Dependency> finishedDependencies = new ConcurrentLinkedQueue<Dependency>();
+
+	/**
+	 * Jobs that were pushed onto a worker's local deque and have not started
+	 * yet.
+	 */
+	private final Set<JobHandle> forkedJobs = ConcurrentHashMap.newKeySet();
+	/**
+	 * The jobs that are running. This is modified without locking; see
+	 * {@link #activate(Job)} and {@link #deactivate(Job)}.
+	 */
+	private final Set<Job> active = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The number of jobs in {@link #active}.
+	 */
+	private final AtomicInteger activeCount = new AtomicInteger();
+
+	/**
+	 * The number of jobs that have not started yet: the jobs in the queue,
+	 * {@link #blockedJobs}, {@link #forkedJobs} and {@link #delayedJobs}. This
+	 * is updated alongside those structures, so it can be read without
+	 * locking.
+	 * <p>
+	 * When a job starts it is counted as active before it stops counting as
+	 * pending, so the sum of these counts never drops below the true total.
+	 */
+	private final AtomicInteger pendingCount = new AtomicInteger();
+
+	/**
+	 * The handles of every job counted in {@link #pendingCount}. This lets
+	 * observers iterate over pending jobs without locking the queue.
+	 */
+	private final Set<JobHandle> pendingHandles = ConcurrentHashMap.newKeySet();
+
+	/** @see #getPendingJobsView() */
+	private final Collection<Job> pendingJobsView = new AbstractCollection<Job>() {
+		@Override
+		public Iterator<Job> iterator() {
+			final Iterator<JobHandle> iter = pendingHandles.iterator();
+			return new Iterator<Job>() {
+				public boolean hasNext() {
+					return iter.hasNext();
+				}
+
+				public Job next() {
+					return iter.next().job;
+				}
+			};
+		}
+
+		@Override
+		public int size() {
+			return pendingCount.get();
+		}
+	};
+
+	/** @see #getActiveJobsView() */
+	private final Collection<Job> activeJobsView = Collections
+			.unmodifiableSet(active);
+
+	/**
+	 * Jobs that failed and are waiting to be retried. This is guarded by the
+	 * queue.
+	 */
+	private final Set<JobHandle> delayedJobs = new LinkedHashSet<JobHandle>();
+
+	/**
+	 * The maximum number of pending jobs. This is only modified while
+	 * synchronized against the queue.
+	 */
+	private volatile int capacity = Integer.MAX_VALUE;
+
+	/**
+	 * What happens when a job is submitted and there are already
+	 * {@link #capacity} pending jobs. This is only modified while
+	 * synchronized against the queue.
+	 */
+	private volatile OverflowPolicy overflowPolicy = OverflowPolicy.BLOCK;
+
+	/**
+	 * The number of threads waiting in <code>addJob</code> for capacity. This
+	 * is only modified while synchronized against the queue.
+	 */
+	private volatile int waitingSubmitters = 0;
+
+	/** @see #setCriticalPathScheduling(boolean) */
+	private volatile boolean criticalPathScheduling = false;
+
+	/**
+	 * The handle of the job the current thread is running, if any.
+	 */
+	private static final ThreadLocal<JobHandle> currentHandle = new ThreadLocal<JobHandle>();
+	private final int threadCount;
+	private final ExecutionMode executionMode;
+
+	/**
+	 * The number of {@link #processQueueRunnable} executions that are either
+	 * running or waiting in the executor's queue.
+	 */
+	private final AtomicInteger scheduledWorkers = new AtomicInteger();
+
+	/** The maximum value of {@link #scheduledWorkers}. */
+	private final int maxScheduledWorkers;
+	/**
+	 * The most recent job submitted with each replacement id, until it
+	 * finishes or is removed.
+	 */
+	private final Map<String, JobHandle> jobsByReplacementId = new HashMap<>();
+	private long sequenceCounter = 0;
+
+	/**
+	 * True if {@link #tokenTimerRunnable} is scheduled. This is guarded by the
+	 * queue.
+	 */
+	private boolean tokenTimerScheduled = false;
+
+	/**
+	 * This wakes a worker when a rate-limited resource class should have a
+	 * token available.
+	 */
+	private final Runnable tokenTimerRunnable = new Runnable() {
+		public void run() {
+			synchronized (queue) {
+				tokenTimerScheduled = false;
+			}
+			wakeWorkers(1);
+		}
+	};
+
+	/**
+	 * The listeners. This list is copied whenever it changes, so it can be
+	 * iterated without locking.
+	 */
+	transient final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/**
+	 * If this is non-null then listeners are notified on this executor.
+	 */
+	private volatile Executor listenerExecutor;
+
+	/** Events waiting to be delivered on the {@link #listenerExecutor}. */
+	private final ConcurrentLinkedQueue<ListenerEvent> pendingEvents = new ConcurrentLinkedQueue<ListenerEvent>();
+
+	/**
+	 * True while {@link #deliverPendingEventsRunnable} is scheduled or
+	 * running.
+	 */
+	private final AtomicBoolean deliveringEvents = new AtomicBoolean(false);
+
+	/**
+	 * The maximum number of batches delivered per second, or zero if events
+	 * are not batched.
+	 */
+	private volatile int maxBatchesPerSecond = 0;
+
+	/**
+	 * The last time (see System.nanoTime()) a batch was delivered. This starts
+	 * a second in the past (longer than any batch interval), because
+	 * System.nanoTime() has an arbitrary origin.
+	 */
+	private volatile long lastBatchTime = System.nanoTime() - 1000000000L;
+
+	/**
+	 * This delivers all the {@link #pendingEvents}. Only one instance of this
+	 * runs at a time, so listeners receive events in the order they were
+	 * fired even if the listener executor has several threads.
+	 */
+	private final Runnable deliverPendingEventsRunnable = new Runnable() {
+		public void run() {
+			while (true) {
+				if (maxBatchesPerSecond == 0) {
+					ListenerEvent event;
+					while ((event = pendingEvents.poll()) != null) {
+						deliver(event);
+					}
+				} else {
+					List<ListenerEvent> batch = new ArrayList<ListenerEvent>();
+					ListenerEvent event;
+					while ((event = pendingEvents.poll()) != null) {
+						batch.add(event);
+					}
+					lastBatchTime = System.nanoTime();
+					for (ListenerEvent merged : ListenerEvent.merge(batch)) {
+						deliver(merged);
+					}
 				}
+				deliveringEvents.set(false);
+				// an event may have arrived after we polled but before we
+				// cleared the flag
+				if (pendingEvents.isEmpty()
+						|| !deliveringEvents.compareAndSet(false, true))
+					return;
+				if (maxBatchesPerSecond != 0) {
+					// wait for the next time slot
+					scheduleDelivery();
+					return;
+				}
+			}
+		}
+	};
+
+	/**
+	 * This hands {@link #deliverPendingEventsRunnable} to the listener
+	 * executor (if any) when the next batch is due.
+	 */
+	private final Runnable batchTimerRunnable = new Runnable() {
+		public void run() {
+			Executor executor = listenerExecutor;
+			if (executor == null) {
+				deliverPendingEventsRunnable.run();
+			} else {
+				executor.execute(deliverPendingEventsRunnable);
 			}
+		}
+	};
+	transient volatile ExecutorService service;
 
-			if (cancelActiveJobs) {
-				synchronized (active) {
-					for (Job j : active) {
-						j.cancel();
+	/** The lock used to create {@link #service}. */
+	private final Object serviceLock = new Object();
+
+	private final JobStatistics statistics = new JobStatistics();
+
+	/**
+	 * The child processes jobs are executed in, if this uses
+	 * {@link ExecutionMode#PROCESS_POOL}.
+	 */
+	private final RemoteWorkerPool remoteWorkers;
+
+	/** The cache of ResultJob results, or null. */
+	private volatile ResultCache resultCache;
+
+	/**
+	 * The ResultJobs that are queued or running, keyed by their cache keys.
+	 * This is guarded by the queue.
+	 */
+	private final Map<Object, InFlight> jobsInFlight = new HashMap<Object, InFlight>();
+
+	/** The journal new jobs are recorded in, or null. */
+	private volatile JobJournal journal;
+
+	/**
+	 * Create a JobManager that uses {@link ExecutionMode#THREAD_POOL}.
+	 * 
+	 * @param threadCount
+	 *            the number of threads used to execute jobs.
+	 */
+	public JobManager(int threadCount) {
+		this(threadCount, ExecutionMode.THREAD_POOL);
+	}
+
+	/**
+	 * Create a JobManager.
+	 * 
+	 * @param threadCount
+	 *            the number of threads used to execute jobs.
+	 * @param executionMode
+	 *            how the worker threads are organized.
+	 */
+	public JobManager(int threadCount, ExecutionMode executionMode) {
+		if (executionMode == null)
+			throw new NullPointerException();
+		if (threadCount < 1)
+			throw new IllegalArgumentException("threadCount (" + threadCount
+					+ ") must be at least 1");
+		this.threadCount = threadCount;
+		this.executionMode = executionMode;
+		if (executionMode == ExecutionMode.VIRTUAL_THREADS
+				&& isVirtualThreadSupported()) {
+			queue = new ReadyQueue(threadCount, true);
+			maxScheduledWorkers = Integer.MAX_VALUE;
+		} else {
+			queue = new ReadyQueue();
+			maxScheduledWorkers = threadCount;
+		}
+		if (executionMode == ExecutionMode.PROCESS_POOL) {
+			remoteWorkers = new RemoteWorkerPool();
+		} else {
+			remoteWorkers = null;
+		}
+	}
+
+	/**
+	 * Assign the JVM arguments (such as "-Xmx2g") used to launch worker
+	 * processes. This only affects processes launched after this is called.
+	 * 
+	 * @throws IllegalStateException
+	 *             if this JobManager doesn't use
+	 *             {@link ExecutionMode#PROCESS_POOL}.
+	 */
+	public void setWorkerProcessArguments(String... jvmArguments) {
+		if (remoteWorkers == null)
+			throw new IllegalStateException(
+					"worker processes are only used in PROCESS_POOL mode");
+		remoteWorkers.setJVMArguments(jvmArguments);
+	}
+
+	/**
+	 * Make sure up to <code>count</code> additional workers are scheduled to
+	 * process the queue, without exceeding the maximum number of workers.
+	 * Workers that are already scheduled keep polling the queue until it is
+	 * empty, so new work never needs more wakeups than that.
+	 */
+	private void wakeWorkers(int count) {
+		for (int a = 0; a < count; a++) {
+			if (!reserveWorker())
+				return;
+			getExecutorService().execute(processQueueRunnable);
+		}
+	}
+
+	/**
+	 * Increment {@link #scheduledWorkers} if it is below its maximum.
+	 * 
+	 * @return true if the count was incremented, in which case the caller is
+	 *         responsible for running {@link #processQueueRunnable}.
+	 */
+	private boolean reserveWorker() {
+		while (true) {
+			int count = scheduledWorkers.get();
+			if (count >= maxScheduledWorkers)
+				return false;
+			if (scheduledWorkers.compareAndSet(count, count + 1))
+				return true;
+		}
+	}
+
+	/**
+	 * Return true if a worker polling the queue right now might find a job.
+	 */
+	private boolean isJobAvailable() {
+		synchronized (queue) {
+			return !finishedDependencies.isEmpty() || queue.isJobAvailable();
+		}
+	}
+
+	/** Return the ExecutionMode this JobManager was constructed with. */
+	public ExecutionMode getExecutionMode() {
+		return executionMode;
+	}
+
+	private ExecutorService getExecutorService() {
+		ExecutorService s = service;
+		if (s == null) {
+			synchronized (serviceLock) {
+				s = service;
+				if (s == null) {
+					if (executionMode == ExecutionMode.WORK_STEALING) {
+						s = new ForkJoinPool(threadCount);
+					} else if (executionMode == ExecutionMode.VIRTUAL_THREADS) {
+						s = createVirtualThreadExecutor();
+					}
+					if (s == null) {
+						s = Executors.newFixedThreadPool(threadCount);
 					}
+					service = s;
+				}
+			}
+		}
+		return s;
+	}
+
+	/**
+	 * Return true if the current thread is one of this manager's
+	 * work-stealing workers.
+	 */
+	private boolean isLocalWorker() {
+		return executionMode == ExecutionMode.WORK_STEALING
+				&& service != null && ForkJoinTask.getPool() == service;
+	}
+
+	/**
+	 * Remove and return the next Job that should be executed, or null. The
+	 * job is already counted as active.
+	 */
+	private JobHandle popHighestPriorityAvailableJob() {
+		int releasedCount;
+		JobHandle handle;
+		synchronized (queue) {
+			releasedCount = processFinishedDependencies();
+			handle = queue.poll();
+			if (handle != null) {
+				activate(handle.job);
+				pendingRemoved(handle);
+				if (waitingSubmitters > 0)
+					queue.notifyAll();
+			}
+			if (handle == null && !tokenTimerScheduled) {
+				long delay = queue.getTokenDelay();
+				if (delay >= 0) {
+					tokenTimerScheduled = true;
+					JobTimer.schedule(tokenTimerRunnable, delay);
+				}
+			}
+		}
+		// the current thread takes one job; recruit help for the rest
+		if (releasedCount > 1)
+			wakeWorkers(releasedCount - 1);
+		return handle;
+	}
+
+	/**
+	 * Move blocked jobs into the queue if the last of their dependencies has
+	 * finished. This must be called while synchronized against the queue.
+	 *
+	 * @return the number of jobs that were moved into the queue.
+	 */
+	private int processFinishedDependencies() {
+		int count = 0;
+		Dependency dependency;
+		while ((dependency = finishedDependencies.poll()) != null) {
+			if (waitingJobs.get(dependency.job) != dependency
+					|| !isDone(dependency.job))
+				continue;
+			waitingJobs.remove(dependency.job);
+			unregister(dependency);
+			for (JobHandle handle : dependency.waitingHandles) {
+				handle.pendingDependencies--;
+				if (handle.pendingDependencies == 0) {
+					blockedJobs.remove(handle);
+					handle.readyTime = System.nanoTime();
+					queue.add(handle);
+					count++;
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Return true if a dependency no longer blocks the jobs that rely on it.
+	 */
+	private static boolean isDone(Job dependency) {
+		/*
+		 * Let cancelled jobs run. The Job.run() method checks for this
+		 * condition and will throw an exception. This way: the
+		 * JobManager.Listener will receive feedback that a job started, even
+		 * if it was destined to crash and fail.
+		 */
+		return dependency.isCancelled() || dependency.isFinished();
+	}
+
+	/**
+	 * Record every unfinished dependency of a new job, or add it to the queue
+	 * if there are none. This must be called while synchronized against the
+	 * queue.
+	 *
+	 * @return true if the job was added to the queue, false if it is blocked.
+	 */
+	private boolean enqueue(JobHandle handle) {
+		return enqueue(handle, false);
+	}
+
+	/**
+	 * Record every unfinished dependency of a new job, or start it if there
+	 * are none. This must be called while synchronized against the queue.
+	 * 
+	 * @param forkLocally
+	 *            if true and this job is ready, then the job is pushed onto
+	 *            the current worker's local deque instead of the queue.
+	 * @return true if the job was added to the queue, false if it is blocked
+	 *         or was forked.
+	 */
+	private boolean enqueue(JobHandle handle, boolean forkLocally) {
+		pendingAdded(handle);
+		Set<Job> visited = new HashSet<Job>();
+		handle.dependencies = handle.job.getDependencies();
+		if (criticalPathScheduling)
+			updateCriticalPath(handle);
+		for (Job d : handle.dependencies) {
+			if (!visited.add(d) || isDone(d))
+				continue;
+			JobHandle dh = d.lastHandle;
+			if (dh != null && dh.skipped) {
+				// d was removed after this job was validated; see skipped()
+				d.cancel();
+				continue;
+			}
+			Dependency dependency = waitingJobs.get(d);
+			if (dependency == null) {
+				dependency = new Dependency(d);
+				d.addFinishListener(dependency);
+				d.addCancelListener(dependency);
+				// check again in case d finished before our listener was added
+				if (isDone(d)) {
+					unregister(dependency);
+					continue;
+				}
+				waitingJobs.put(d, dependency);
+			}
+			dependency.waitingHandles.add(handle);
+			handle.pendingDependencies++;
+		}
+		if (handle.pendingDependencies == 0) {
+			handle.readyTime = System.nanoTime();
+			if (forkLocally) {
+				forkedJobs.add(handle);
+				new LocalJob(handle).fork();
+				return false;
+			}
+			queue.add(handle);
+			return true;
+		}
+		blockedJobs.add(handle);
+		return false;
+	}
+
+	/**
+	 * Measure the critical path of a new job from the pending jobs that wait
+	 * for it, and lengthen the critical paths of the pending jobs it waits
+	 * for. This must be called while synchronized against the queue.
+	 * <p>
+	 * This only visits dependencies whose critical path actually grows, so
+	 * building a graph one job at a time costs about as much as the
+	 * critical paths it creates.
+	 */
+	private void updateCriticalPath(JobHandle handle) {
+		Dependency dependents = waitingJobs.get(handle.job);
+		if (dependents != null) {
+			for (JobHandle dependent : dependents.waitingHandles) {
+				handle.criticalPath = Math.max(handle.criticalPath,
+						dependent.criticalPath + 1);
+			}
+		}
+		List<JobHandle> stack = new ArrayList<JobHandle>();
+		stack.add(handle);
+		while (!stack.isEmpty()) {
+			JobHandle h = stack.remove(stack.size() - 1);
+			if (h.dependencies == null)
+				continue;
+			for (Job d : h.dependencies) {
+				JobHandle dh = d.lastHandle;
+				if (dh == null || dh.manager != this
+						|| dh.criticalPath > h.criticalPath || isDone(d))
+					continue;
+				dh.criticalPath = h.criticalPath + 1;
+				if (queue.contains(dh)) {
+					queue.update(dh);
+				} else if (!blockedJobs.contains(dh)
+						&& !delayedJobs.contains(dh)) {
+					// it already started, so jobs upstream don't matter
+					continue;
 				}
+				stack.add(dh);
+			}
+		}
+	}
+
+	/**
+	 * Remove a blocked job from every dependency it is waiting for. This must
+	 * be called while synchronized against the queue.
+	 * 
+	 * @return true if the job was blocked, false if it was not.
+	 */
+	private boolean unblock(JobHandle handle) {
+		if (!blockedJobs.remove(handle))
+			return false;
+		for (Job d : handle.dependencies) {
+			Dependency dependency = waitingJobs.get(d);
+			if (dependency != null && dependency.waitingHandles.remove(handle)
+					&& dependency.waitingHandles.isEmpty()) {
+				waitingJobs.remove(d);
+				unregister(dependency);
 			}
 		}
+		handle.pendingDependencies = 0;
+		return true;
+	}
+
+	/**
+	 * Remove a job that has not started yet, wherever it is waiting. This
+	 * must be called while synchronized against the queue.
+	 * 
+	 * @return true if the job was removed, false if it already started (or
+	 *         was already removed).
+	 */
+	private boolean removePending(JobHandle handle) {
+		if (forkedJobs.remove(handle) || queue.remove(handle)
+				|| unblock(handle) || delayedJobs.remove(handle)) {
+			pendingRemoved(handle);
+			return true;
+		}
 		return false;
 	}
+
+	/**
+	 * Stop tracking a job's replacement id, unless a newer job already uses
+	 * it. This must be called while synchronized against the queue.
+	 */
+	private void forgetReplacementId(JobHandle handle) {
+		String id = handle.job.getReplacementId();
+		if (id != null)
+			jobsByReplacementId.remove(id, handle);
+	}
+
+	private void unregister(Dependency dependency) {
+		dependency.job.removeFinishListener(dependency);
+		dependency.job.removeCancelListener(dependency);
+	}
+
+	/** Add a Listener to this JobManager. */
+	public synchronized boolean addListener(Listener l) {
+		if (listeners.contains(l))
+			return false;
+		if (l instanceof ChangeListenerWrapper) {
+			ChangeListenerWrapper incoming = (ChangeListenerWrapper) l;
+			// ugh, we have to do more exhaustive search:
+			for (Listener l2 : listeners) {
+				if (l2 instanceof ChangeListenerWrapper) {
+					ChangeListenerWrapper existing = (ChangeListenerWrapper) l2;
+					if (existing.changeListener == incoming.changeListener)
+						return false;
+				}
+			}
+		}
+		listeners.add(l);
+		return true;
+	}
+
+	/** Remove a Listener to this JobManager. */
+	public synchronized boolean removeListener(Listener l) {
+		if (l instanceof ChangeListenerWrapper) {
+			ChangeListenerWrapper incoming = (ChangeListenerWrapper) l;
+			// ugh, we have to do more exhaustive search:
+			for (int a = 0; a < listeners.size(); a++) {
+				if (listeners.get(a) instanceof ChangeListenerWrapper) {
+					ChangeListenerWrapper existing = (ChangeListenerWrapper) listeners
+							.get(a);
+					if (existing.changeListener == incoming.changeListener) {
+						listeners.remove(a);
+						return true;
+					}
+				}
+			}
+		}
+		return listeners.remove(l);
+	}
+
+	/**
+	 * Add one or more Jobs to the job queue.
+	 * <p>
+	 * The whole list is added while the queue is locked once, and listeners
+	 * receive a single <code>jobQueued</code> notification for the list.
+	 * 
+	 * @return a handle for each job, in the same order as the list.
+	 * @throws IllegalArgumentException
+	 *             if a job depends on an unfinished job that was never
+	 *             submitted, or if the jobs depend on each other in a cycle.
+	 *             In either case none of the jobs are added.
+	 */
+	public List<JobHandle> addJob(List<? extends Job> jobs) {
+		return Arrays.asList(addJob(jobs.toArray(new Job[jobs.size()])));
+	}
+
+	/**
+	 * Add one or more Jobs to the job queue.
+	 * <p>
+	 * The whole array is added while the queue is locked once, and listeners
+	 * receive a single <code>jobQueued</code> notification for the array.
+	 * 
+	 * If this JobManager has a capacity (see
+	 * {@link #setCapacity(int, OverflowPolicy)}) and
+	 * {@link OverflowPolicy#BLOCK} makes this wait, then the jobs are added
+	 * one at a time instead, so each job is reported as soon as it is queued.
+	 * 
+	 * @return a handle for each job, in the same order as the array. These
+	 *         can be used to remove or reprioritize a job before it starts.
+	 * @throws RejectedExecutionException
+	 *             if the {@link OverflowPolicy#REJECT} policy is used and
+	 *             there is not room for every job.
+	 * @throws IllegalArgumentException
+	 *             if a job depends on an unfinished job that was never
+	 *             submitted (or was removed without running), or if the jobs
+	 *             depend on each other in a cycle. In either case none of the
+	 *             jobs are added.
+	 */
+	public JobHandle[] addJob(Job... jobs) {
+		validateDependencies(jobs);
+		return submit(jobs, null);
+	}
+
+	/**
+	 * Make sure a set of new jobs can all eventually run. Every dependency of
+	 * a new job must be finished (or cancelled), pending or running, or one
+	 * of the new jobs, and the new jobs must not depend on each other in a
+	 * cycle.
+	 * <p>
+	 * A job that was already submitted can't depend on a job that was never
+	 * submitted, so a new cycle can only be made of new jobs. This costs
+	 * O(j + e), where j is the number of new jobs and e is the number of
+	 * dependencies they have.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if a job can never run.
+	 */
+	private static void validateDependencies(Job[] jobs) {
+		Map<Job, Integer> indices = new HashMap<Job, Integer>(jobs.length * 2);
+		for (int a = 0; a < jobs.length; a++) {
+			indices.put(jobs[a], a);
+		}
+		int[] pendingDependencies = new int[jobs.length];
+		List<List<Integer>> dependents = null;
+		for (int a = 0; a < jobs.length; a++) {
+			for (Job d : jobs[a].getDependencies()) {
+				Integer b = indices.get(d);
+				if (b != null) {
+					if (dependents == null) {
+						dependents = new ArrayList<List<Integer>>(jobs.length);
+						for (int c = 0; c < jobs.length; c++) {
+							dependents.add(new ArrayList<Integer>(1));
+						}
+					}
+					dependents.get(b).add(a);
+					pendingDependencies[a]++;
+				} else if ((d.lastHandle == null || d.lastHandle.skipped)
+						&& !isDone(d)) {
+					throw new IllegalArgumentException("the job \""
+							+ jobs[a].getName() + "\" depends on the job \""
+							+ d.getName()
+							+ "\", which is not pending in a JobManager");
+				}
+			}
+		}
+		if (dependents == null)
+			return;
+
+		// remove jobs in topological order; whatever is left is in a cycle
+		int[] ready = new int[jobs.length];
+		int readyCount = 0;
+		for (int a = 0; a < jobs.length; a++) {
+			if (pendingDependencies[a] == 0)
+				ready[readyCount++] = a;
+		}
+		for (int k = 0; k < readyCount; k++) {
+			for (int dependent : dependents.get(ready[k])) {
+				if (--pendingDependencies[dependent] == 0)
+					ready[readyCount++] = dependent;
+			}
+		}
+		if (readyCount < jobs.length) {
+			StringBuilder sb = new StringBuilder();
+			for (int a = 0; a < jobs.length; a++) {
+				if (pendingDependencies[a] > 0) {
+					if (sb.length() > 0)
+						sb.append(", ");
+					sb.append('"').append(jobs[a].getName()).append('"');
+				}
+			}
+			throw new IllegalArgumentException(
+					"these jobs have circular dependencies: " + sb);
+		}
+	}
+
+	/**
+	 * Add jobs to the job queue.
+	 * 
+	 * @param parents
+	 *            an optional array of the same length as <code>jobs</code>.
+	 *            Each non-null element is the running job that forked the
+	 *            corresponding job.
+	 */
+	private JobHandle[] submit(Job[] jobs, JobHandle[] parents) {
+		boolean runningJob = isRunningJob();
+		if (jobs.length > 1 && capacity != Integer.MAX_VALUE
+				&& overflowPolicy == OverflowPolicy.BLOCK && !runningJob) {
+			JobHandle[] handles = new JobHandle[jobs.length];
+			for (int a = 0; a < jobs.length; a++) {
+				handles[a] = submit(new Job[] { jobs[a] },
+						parents == null ? null
+								: new JobHandle[] { parents[a] })[0];
+			}
+			return handles;
+		}
+
+		JobHandle[] handles = new JobHandle[jobs.length];
+		boolean localWorker = isLocalWorker();
+		int readyCount = 0;
+		List<JobHandle> replacedHandles = new ArrayList<JobHandle>();
+		List<JobHandle> cachedHandles = new ArrayList<JobHandle>();
+		List<JobHandle> callerHandles = new ArrayList<JobHandle>();
+		JobJournal journal = this.journal;
+		byte[][] serializedJobs = null;
+		long[] journalIds = null;
+		if (journal != null) {
+			/*
+			 * Journal the jobs before they are queued, so no job can finish
+			 * before its record is written. This happens outside of the lock
+			 * because serializing may be expensive, and because a write may
+			 * compact (and fsync) the journal file.
+			 */
+			serializedJobs = new byte[jobs.length][];
+			for (int a = 0; a < jobs.length; a++) {
+				serializedJobs[a] = journal.serialize(jobs[a]);
+			}
+			journalIds = journalSubmitted(journal, jobs, serializedJobs);
+		}
+		try {
+			synchronized (queue) {
+				if (overflowPolicy == OverflowPolicy.REJECT
+						&& jobs.length > capacity - getPendingCount())
+					throw new RejectedExecutionException(
+							"there is not room for " + jobs.length
+									+ " more job(s) (capacity = " + capacity
+									+ ")");
+				for (Job job : jobs) {
+					if (job.isFinished()) {
+						System.err
+								.println("JobManager warning: the job \""
+										+ job.getName()
+										+ "\" was classified as finished, but it is being resubmitted. Resetting status to unfinished.");
+						job.properties.set(Job.FINISHED, false);
+					}
+					if (job.isCancelled()) {
+						System.err
+								.println("JobManager warning: the job \""
+										+ job.getName()
+										+ "\" was classified as cancelled, but it is being resubmitted. Resetting status to uncancelled.");
+						job.properties.set(Job.CANCELLED, false);
+					}
+				}
+				for (int a = 0; a < jobs.length; a++) {
+					Job job = jobs[a];
+					String replacementId = job.getReplacementId();
+					String resourceClass = job.getResourceClass();
+					/*
+					 * Wait before this job is memoized or claims its
+					 * replacement id: until it is queued nothing else may
+					 * find (and cancel) it.
+					 */
+					if (overflowPolicy == OverflowPolicy.BLOCK && !runningJob
+							&& getPendingCount() >= capacity)
+						waitForCapacity();
+					JobHandle handle = new JobHandle(this, job,
+							job.getPriority(), job.isBlocking(), resourceClass,
+							sequenceCounter++);
+					handle.retryPolicy = job.getRetryPolicy();
+					handles[a] = handle;
+					job.lastHandle = handle;
+					if (parents != null && parents[a] != null)
+						adopt(parents[a], handle);
+					if (journal != null && journalIds[a] != 0) {
+						handle.journalId = journalIds[a];
+						handle.journal = journal;
+					}
+					if (memoize(handle, cachedHandles))
+						continue;
+					if (replacementId != null) {
+						JobHandle oldHandle = jobsByReplacementId.put(
+								replacementId, handle);
+						/*
+						 * Take a pending job out of the queue now, so the
+						 * queue never accumulates cancelled jobs. An active
+						 * job is only cancelled.
+						 */
+						if (oldHandle != null) {
+							if (removePending(oldHandle))
+								replacedHandles.add(oldHandle);
+							oldHandle.job.cancel();
+						}
+					}
+					if (getPendingCount() >= capacity) {
+						OverflowPolicy policy = overflowPolicy;
+						if (policy == OverflowPolicy.DROP_LOWEST_PRIORITY) {
+							JobHandle last = queue.getLast();
+							if (last == null || last.precedes(handle)) {
+								forgetReplacementId(handle);
+								replacedHandles.add(handle);
+								continue;
+							}
+							queue.remove(last);
+							pendingRemoved(last);
+							forgetReplacementId(last);
+							replacedHandles.add(last);
+						} else if (policy == OverflowPolicy.CALLER_RUNS
+								|| (policy == OverflowPolicy.BLOCK
+										&& runningJob)) {
+							if (!hasUnfinishedDependencies(job)) {
+								handle.dependencies = job.getDependencies();
+								handle.readyTime = System.nanoTime();
+								callerHandles.add(handle);
+								continue;
+							}
+						}
+					}
+					// only jobs in the queue are throttled or replaced
+					boolean forkLocally = localWorker && replacementId == null
+							&& resourceClass == null;
+					if (enqueue(handle, forkLocally)) {
+						readyCount++;
+					}
+				}
+			}
+		} catch (RejectedExecutionException e) {
+			// retire the records outside of the lock
+			if (journal != null)
+				journalRetired(journal, jobs, serializedJobs, journalIds,
+						jobs.length);
+			throw e;
+		}
+		wakeWorkers(readyCount);
+		JobEvents.queued(jobs);
+		fireListeners(QUEUE, jobs);
+		if (!replacedHandles.isEmpty())
+			skipped(replacedHandles);
+		if (!cachedHandles.isEmpty()) {
+			Job[] cachedJobs = new Job[cachedHandles.size()];
+			for (int a = 0; a < cachedJobs.length; a++) {
+				cachedJobs[a] = cachedHandles.get(a).job;
+				cachedJobs[a].properties.set(Job.FINISHED, true);
+			}
+			fireListeners(ADD, cachedJobs);
+			fireListeners(REMOVE, cachedJobs);
+			for (JobHandle handle : cachedHandles) {
+				journalDone(handle);
+				childDone(handle, null);
+			}
+		}
+		for (JobHandle handle : callerHandles) {
+			activate(handle.job);
+			runJob(handle, false);
+		}
+		return handles;
+	}
+
+	/**
+	 * Write the journal records of jobs that are about to be submitted. If a
+	 * record can't be written, then the records this already wrote are
+	 * retired before the exception is rethrown.
+	 * 
+	 * @param serializedJobs
+	 *            the values {@link JobJournal#serialize(Job)} returned for
+	 *            each job.
+	 * @return the journal id of each job, or 0 if a job isn't journaled.
+	 */
+	private static long[] journalSubmitted(JobJournal journal, Job[] jobs,
+			byte[][] serializedJobs) {
+		long[] journalIds = new long[jobs.length];
+		int a = 0;
+		try {
+			for (; a < jobs.length; a++) {
+				journalIds[a] = journal.submitted(jobs[a], serializedJobs[a]);
+			}
+		} catch (RuntimeException | Error e) {
+			journalRetired(journal, jobs, serializedJobs, journalIds, a);
+			throw e;
+		}
+		return journalIds;
+	}
+
+	/**
+	 * Retire the journal records that {@link #journalSubmitted} wrote for
+	 * jobs that will not be queued. Jobs that already had a record (such as
+	 * recovered jobs) keep it.
+	 * 
+	 * @param count
+	 *            the number of jobs, starting at the first, to retire.
+	 */
+	private static void journalRetired(JobJournal journal, Job[] jobs,
+			byte[][] serializedJobs, long[] journalIds, int count) {
+		for (int a = 0; a < count; a++) {
+			if (serializedJobs[a] != null)
+				journal.done(jobs[a], journalIds[a]);
+		}
+	}
+
+	/**
+	 * Return true if the current thread is running a job for this
+	 * JobManager.
+	 */
+	private boolean isRunningJob() {
+		JobHandle handle = currentHandle.get();
+		return handle != null && handle.manager == this;
+	}
+
+	/**
+	 * Return true if any of a job's dependencies is not finished.
+	 */
+	private static boolean hasUnfinishedDependencies(Job job) {
+		for (Job d : job.getDependencies()) {
+			if (!isDone(d))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Return the number of jobs that have not started yet.
+	 */
+	private int getPendingCount() {
+		return pendingCount.get();
+	}
+
+	/**
+	 * Wait until there are fewer than {@link #capacity} pending jobs. This
+	 * must be called while synchronized against the queue.
+	 * <p>
+	 * If this thread is interrupted then this stops waiting (so the job is
+	 * added anyway) and the interrupt status is preserved.
+	 */
+	private void waitForCapacity() {
+		waitingSubmitters++;
+		try {
+			while (getPendingCount() >= capacity
+					&& overflowPolicy == OverflowPolicy.BLOCK) {
+				queue.wait();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			waitingSubmitters--;
+		}
+	}
+
+	/**
+	 * Wake the threads that are waiting for capacity, if any.
+	 */
+	private void capacityFreed() {
+		if (waitingSubmitters > 0) {
+			synchronized (queue) {
+				queue.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Limit the number of pending jobs.
+	 * <p>
+	 * Jobs that have started don't count against this limit, but jobs that
+	 * are waiting for their dependencies or for a retry do. Lowering the
+	 * capacity never removes jobs that are already pending.
+	 * 
+	 * @param capacity
+	 *            the maximum number of pending jobs, or Integer.MAX_VALUE for
+	 *            no limit. The default is Integer.MAX_VALUE.
+	 * @param policy
+	 *            what <code>addJob</code> does when there are already this
+	 *            many pending jobs.
+	 */
+	public void setCapacity(int capacity, OverflowPolicy policy) {
+		if (policy == null)
+			throw new NullPointerException();
+		if (capacity < 1)
+			throw new IllegalArgumentException("capacity (" + capacity
+					+ ") must be at least 1");
+		synchronized (queue) {
+			this.capacity = capacity;
+			this.overflowPolicy = policy;
+			// blocked submitters re-evaluate the new limit and policy
+			queue.notifyAll();
+		}
+	}
+
+	/**
+	 * Return the maximum number of pending jobs, or Integer.MAX_VALUE if it is
+	 * unlimited.
+	 * 
+	 * @see #setCapacity(int, OverflowPolicy)
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Return what <code>addJob</code> does when this JobManager is at
+	 * capacity.
+	 * 
+	 * @see #setCapacity(int, OverflowPolicy)
+	 */
+	public OverflowPolicy getOverflowPolicy() {
+		return overflowPolicy;
+	}
+
+	/**
+	 * Return all jobs that are currently executing.
+	 * 
+	 * @see #getActiveJobsView()
+	 */
+	public Job[] getActiveJobs() {
+		return active.toArray(new Job[0]);
+	}
+
+	/**
+	 * Return a live, unmodifiable view of the jobs that are currently
+	 * executing.
+	 * <p>
+	 * This never locks and never copies, so it is suitable for observers that
+	 * poll frequently. Its iterators are weakly consistent: they never throw a
+	 * ConcurrentModificationException, and they reflect some (but not
+	 * necessarily all) of the changes made while they iterate. A job that is
+	 * just starting may briefly appear in both this view and
+	 * {@link #getPendingJobsView()}.
+	 */
+	public Collection<Job> getActiveJobsView() {
+		return activeJobsView;
+	}
+
+	/**
+	 * Return a live, unmodifiable view of the jobs that are waiting to
+	 * execute, in no particular order.
+	 * <p>
+	 * This never locks the queue and never copies it, so observers can walk
+	 * the pending jobs without blocking workers. Its iterators are weakly
+	 * consistent, as in {@link #getActiveJobsView()}. Use
+	 * {@link #getPendingJobs()} for a consistent snapshot in order of
+	 * execution.
+	 */
+	public Collection<Job> getPendingJobsView() {
+		return pendingJobsView;
+	}
+
+	/**
+	 * Return all jobs that are waiting to execute, in order of execution.
+	 * This copies every pending job while the queue is locked.
+	 * 
+	 * @see #getPendingJobsView()
+	 */
+	public Job[] getPendingJobs() {
+		synchronized (queue) {
+			JobHandle[] ready = queue.toSortedArray();
+			List<Job> returnValue = new ArrayList<Job>(ready.length
+					+ blockedJobs.size() + forkedJobs.size()
+					+ delayedJobs.size());
+			for (JobHandle handle : forkedJobs) {
+				returnValue.add(handle.job);
+			}
+			for (int a = 0; a < ready.length; a++) {
+				returnValue.add(ready[a].job);
+			}
+			for (JobHandle handle : blockedJobs) {
+				returnValue.add(handle.job);
+			}
+			for (JobHandle handle : delayedJobs) {
+				returnValue.add(handle.job);
+			}
+			return returnValue.toArray(new Job[returnValue.size()]);
+		}
+	}
+
+	/**
+	 * Returns true if there are any jobs currently being processed. This
+	 * never blocks.
+	 */
+	public boolean isActive() {
+		return activeCount.get() > 0;
+	}
+
+	/**
+	 * Record that a job is waiting to start. This must be called while
+	 * synchronized against the queue.
+	 */
+	private void pendingAdded(JobHandle handle) {
+		pendingHandles.add(handle);
+		pendingCount.incrementAndGet();
+	}
+
+	/**
+	 * Record that a job is no longer waiting to start, because it started or
+	 * was removed.
+	 */
+	private void pendingRemoved(JobHandle handle) {
+		pendingCount.decrementAndGet();
+		pendingHandles.remove(handle);
+	}
+
+	/**
+	 * Add a job to the set of active jobs.
+	 */
+	private void activate(Job job) {
+		active.add(job);
+		activeCount.incrementAndGet();
+	}
+
+	/**
+	 * Remove a job from the set of active jobs.
+	 */
+	private void deactivate(Job job) {
+		activeCount.decrementAndGet();
+		active.remove(job);
+	}
+
+	/**
+	 * Adds a ChangeListener to this JobManager. This is notified of the same
+	 * events as a {@link Listener}; it's just more generic.
+	 * 
+	 * @param l
+	 *            this listener will be notified when that state of this manager
+	 *            changes (active/inactive) and when jobs finish (or stop)
+	 *            running.
+	 */
+	public boolean addChangeListener(ChangeListener l) {
+		return addListener(new ChangeListenerWrapper(l));
+	}
+
+	/**
+	 * Remove a ChangeListener from this JobManager.
+	 */
+	public boolean removeChangeListener(ChangeListener l) {
+		return removeListener(new ChangeListenerWrapper(l));
+	}
+
+	/**
+	 * Returns the number of jobs in this JobManager.
+	 * 
+	 * @param includeActiveJobs
+	 *            if true then this also includes the number of active jobs. If
+	 *            false then this only includes pending jobs that are not
+	 *            currently being processed. (This is no way accounts for
+	 *            completed jobs.)
+	 * @return if false then this includes only the pending jobs that have not
+	 *         started. If true then this returns the pending jobs + the current
+	 *         job.
+	 */
+	public int getJobCount(boolean includeActiveJobs) {
+		// read the pending count first; see pendingCount
+		int count = pendingCount.get();
+		if (includeActiveJobs)
+			count += activeCount.get();
+		return count;
+	}
+
+	/**
+	 * Removes a pending job, triggering a <code>jobSkipped</code> notification.
+	 * This has no effect if the job is already in progress. If other pending
+	 * jobs depend on this job, then it is also cancelled, so they fail
+	 * instead of waiting for it forever.
+	 * <p>
+	 * This searches every pending job. If you have the {@link JobHandle} that
+	 * {@link #addJob(Job...)} returned, then {@link #removeJob(JobHandle)} is
+	 * much faster.
+	 * 
+	 * @return true if the job was removed/skipped, false if the job was not
+	 *         found in the pending queue. (It might already be executing, or
+	 *         have otherwise finished.)
+	 */
+	public boolean removeJob(Job job) {
+		JobHandle removedHandle = null;
+		synchronized (queue) {
+			for (JobHandle handle : forkedJobs) {
+				if (handle.job == job) {
+					removedHandle = handle;
+					break;
+				}
+			}
+			for (int a = 0; a < queue.size() && removedHandle == null; a++) {
+				JobHandle handle = queue.get(a);
+				if (handle.job == job)
+					removedHandle = handle;
+			}
+			Iterator<JobHandle> iter = blockedJobs.iterator();
+			while (removedHandle == null && iter.hasNext()) {
+				JobHandle handle = iter.next();
+				if (handle.job == job)
+					removedHandle = handle;
+			}
+			iter = delayedJobs.iterator();
+			while (removedHandle == null && iter.hasNext()) {
+				JobHandle handle = iter.next();
+				if (handle.job == job)
+					removedHandle = handle;
+			}
+			if (removedHandle == null || !removePending(removedHandle))
+				return false;
+			forgetReplacementId(removedHandle);
+		}
+		skipped(Collections.singletonList(removedHandle));
+		return true;
+	}
+
+	/**
+	 * Removes a pending job, triggering a <code>jobSkipped</code> notification.
+	 * This has no effect if the job is already in progress. This costs at
+	 * most O(log n), where n is the number of pending jobs. As with
+	 * {@link #removeJob(Job)}, the job is cancelled if other pending jobs
+	 * depend on it.
+	 * 
+	 * @param handle
+	 *            a handle returned by {@link #addJob(Job...)}.
+	 * @return true if the job was removed/skipped, false if it already started
+	 *         or was already removed.
+	 */
+	public boolean removeJob(JobHandle handle) {
+		checkHandle(handle);
+		synchronized (queue) {
+			if (!removePending(handle))
+				return false;
+			forgetReplacementId(handle);
+		}
+		skipped(Collections.singletonList(handle));
+		return true;
+	}
+
+	/**
+	 * Removes every pending job that matches a filter, triggering one
+	 * <code>jobSkipped</code> notification for all of them. This has no effect
+	 * on jobs that are already in progress. A removed job that other pending
+	 * jobs depend on is cancelled.
+	 * <p>
+	 * This visits every pending job once while the queue is locked, so the
+	 * filter should be fast and must not interact with this JobManager.
+	 * 
+	 * @param filter
+	 *            the jobs to remove.
+	 * @return true if any jobs were removed.
+	 */
+	public boolean removeIf(final Predicate<? super Job> filter) {
+		List<JobHandle> removedHandles = new ArrayList<JobHandle>();
+		synchronized (queue) {
+			for (JobHandle handle : forkedJobs) {
+				if (filter.test(handle.job) && forkedJobs.remove(handle))
+					removedHandles.add(handle);
+			}
+			queue.removeIf(new Predicate<JobHandle>() {
+				public boolean test(JobHandle handle) {
+					return filter.test(handle.job);
+				}
+			}, removedHandles);
+			int blockedStart = removedHandles.size();
+			for (JobHandle handle : blockedJobs) {
+				if (filter.test(handle.job))
+					removedHandles.add(handle);
+			}
+			for (int a = blockedStart; a < removedHandles.size(); a++) {
+				unblock(removedHandles.get(a));
+			}
+			Iterator<JobHandle> iter = delayedJobs.iterator();
+			while (iter.hasNext()) {
+				JobHandle handle = iter.next();
+				if (filter.test(handle.job)) {
+					iter.remove();
+					removedHandles.add(handle);
+				}
+			}
+			for (JobHandle handle : removedHandles) {
+				pendingRemoved(handle);
+				forgetReplacementId(handle);
+			}
+		}
+		if (removedHandles.isEmpty())
+			return false;
+		skipped(removedHandles);
+		return true;
+	}
+
+	/**
+	 * Changes the priority of a pending job. This costs at most O(log n),
+	 * where n is the number of pending jobs. This also changes the priority of
+	 * the {@link Job} itself.
+	 * <p>
+	 * In {@link ExecutionMode#WORK_STEALING} mode a job submitted from a
+	 * worker thread may already be on that worker's local deque: its priority
+	 * is still updated, but it stays in its place in that deque.
+	 * 
+	 * @param handle
+	 *            a handle returned by {@link #addJob(Job...)}.
+	 * @param priority
+	 *            the new priority.
+	 * @return true if the priority was changed, false if the job already
+	 *         started or was removed.
+	 */
+	public boolean setPriority(JobHandle handle, int priority) {
+		checkHandle(handle);
+		synchronized (queue) {
+			if (queue.contains(handle)) {
+				handle.priority = priority;
+				queue.update(handle);
+			} else if (blockedJobs.contains(handle)
+					|| forkedJobs.contains(handle)
+					|| delayedJobs.contains(handle)) {
+				handle.priority = priority;
+			} else {
+				return false;
+			}
+			handle.job.setPriority(priority);
+		}
+		return true;
+	}
+
+	/**
+	 * Return true if a job is still waiting to start.
+	 * 
+	 * @param handle
+	 *            a handle returned by {@link #addJob(Job...)}.
+	 */
+	public boolean isPending(JobHandle handle) {
+		checkHandle(handle);
+		synchronized (queue) {
+			return queue.contains(handle) || blockedJobs.contains(handle)
+					|| forkedJobs.contains(handle) || delayedJobs.contains(handle);
+		}
+	}
+
+	/**
+	 * Report jobs that were removed without running. This should be called
+	 * outside of any lock.
+	 * <p>
+	 * A skipped job that other pending jobs depend on is cancelled, so those
+	 * jobs are released (and fail, because a dependency was cancelled)
+	 * instead of waiting forever.
+	 */
+	private void skipped(List<JobHandle> handles) {
+		capacityFreed();
+		Job[] jobs = new Job[handles.size()];
+		List<JobHandle> duplicates = new ArrayList<JobHandle>();
+		List<Job> jobsWithDependents = new ArrayList<Job>();
+		for (int a = 0; a < jobs.length; a++) {
+			JobHandle handle = handles.get(a);
+			jobs[a] = handle.job;
+			journalDone(handle);
+		}
+		synchronized (queue) {
+			for (JobHandle handle : handles) {
+				handle.skipped = true;
+				if (waitingJobs.containsKey(handle.job))
+					jobsWithDependents.add(handle.job);
+				if (handle.cacheKey != null) {
+					List<JobHandle> h = finishInFlight(handle, false);
+					if (h != null)
+						duplicates.addAll(h);
+				}
+			}
+		}
+		JobEvents.skipped(jobs);
+		fireListeners(SKIP, jobs);
+		for (Job job : jobsWithDependents) {
+			job.cancel();
+		}
+		// jobs waiting for a skipped job have to run on their own
+		if (!duplicates.isEmpty())
+			resubmit(duplicates);
+		for (JobHandle handle : handles) {
+			childDone(handle, null);
+		}
+	}
+
+	/**
+	 * Record that a job no longer needs to be recovered from the journal.
+	 */
+	private void journalDone(JobHandle handle) {
+		if (handle.journal != null)
+			handle.journal.done(handle.job, handle.journalId);
+	}
+
+	/**
+	 * Attach a journal that records the Serializable jobs submitted to this
+	 * JobManager, so they can be recovered if the process dies before they
+	 * run.
+	 * <p>
+	 * This only affects jobs submitted after this is called. A job is removed
+	 * from the journal when it finishes (successfully or not) or is skipped;
+	 * if the process dies while a job is running, it is recovered.
+	 * 
+	 * @param journal
+	 *            the journal to record jobs in, or null to stop journaling
+	 *            new jobs.
+	 * @see JobJournal#getRecoveredJobs()
+	 */
+	public void setJournal(JobJournal journal) {
+		this.journal = journal;
+	}
+
+	/**
+	 * Assign the cache used to memoize the results of {@link ResultJob
+	 * ResultJobs}.
+	 * <p>
+	 * When a ResultJob with a cache key is submitted, and its key is in the
+	 * cache, it finishes immediately on the submitting thread. If its key
+	 * matches a ResultJob that is already queued or running, it finishes
+	 * with that job's result (or error) instead of running separately. Such
+	 * a job isn't counted as pending and can't be removed, because it never
+	 * enters the queue.
+	 * 
+	 * @param cache
+	 *            the cache to use, or null to stop memoizing results.
+	 */
+	public void setResultCache(ResultCache cache) {
+		resultCache = cache;
+	}
+
+	/**
+	 * Return the cache used to memoize the results of ResultJobs, or null.
+	 * 
+	 * @see #setResultCache(ResultCache)
+	 */
+	public ResultCache getResultCache() {
+		return resultCache;
+	}
+
+	/**
+	 * Return the journal that records new jobs, or null.
+	 * 
+	 * @see #setJournal(JobJournal)
+	 */
+	public JobJournal getJournal() {
+		return journal;
+	}
+
+	private void checkHandle(JobHandle handle) {
+		if (handle.manager != this)
+			throw new IllegalArgumentException("the handle " + handle
+					+ " was not created by this JobManager");
+	}
+
+	/**
+	 * Assign the executor listeners are notified on.
+	 * <p>
+	 * By default this is null, and listeners are notified on whatever thread
+	 * triggered the event (usually a worker thread). If this is non-null then
+	 * events are handed off to this executor, so a slow listener doesn't slow
+	 * down job execution. Events are still delivered one at a time, in the
+	 * order they occurred, even if this executor has several threads.
+	 * <p>
+	 * This should be assigned before any jobs are submitted.
+	 * 
+	 * @param executor
+	 *            the executor to notify listeners on, or null to notify
+	 *            listeners synchronously.
+	 */
+	public void setListenerExecutor(Executor executor) {
+		listenerExecutor = executor;
+	}
+
+	/**
+	 * Return the executor listeners are notified on, or null if listeners are
+	 * notified synchronously.
+	 * 
+	 * @see #setListenerExecutor(Executor)
+	 */
+	public Executor getListenerExecutor() {
+		return listenerExecutor;
+	}
+
+	/**
+	 * Control whether jobs on the critical path of a dependency graph start
+	 * first.
+	 * <p>
+	 * When this is enabled, each job's critical path is the number of jobs on
+	 * the longest chain of pending jobs that (directly or indirectly) depend
+	 * on it. Among jobs of the same priority, jobs with longer critical paths
+	 * start first. This shortens the total time a large graph of jobs takes,
+	 * because the longest chain is started as early as possible. Priorities
+	 * are still respected first.
+	 * <p>
+	 * Critical paths are updated as jobs are submitted, so a graph can be
+	 * submitted in any order. This only affects jobs submitted after this is
+	 * called. This is disabled by default, so jobs of the same priority start
+	 * in the order they were submitted.
+	 * 
+	 * @param criticalPathScheduling
+	 *            true to start critical path jobs first.
+	 */
+	public void setCriticalPathScheduling(boolean criticalPathScheduling) {
+		this.criticalPathScheduling = criticalPathScheduling;
+	}
+
+	/**
+	 * Return true if jobs on the critical path of a dependency graph start
+	 * first.
+	 * 
+	 * @see #setCriticalPathScheduling(boolean)
+	 */
+	public boolean isCriticalPathScheduling() {
+		return criticalPathScheduling;
+	}
+
+	/**
+	 * Control whether listener notifications are gathered into batches.
+	 * <p>
+	 * When this is enabled, events are collected and delivered together at
+	 * most <code>maxBatchesPerSecond</code> times per second. Each batch makes
+	 * at most one call to each listener method (for example: one
+	 * <code>jobAdded</code> call with 500 jobs), in the order a job moves
+	 * through them: <code>jobQueued</code>, <code>jobAdded</code>,
+	 * <code>jobRemoved</code>, <code>jobSkipped</code>. Error notifications
+	 * are never combined and are delivered last.
+	 * <p>
+	 * Batches are delivered on the listener executor (see
+	 * {@link #setListenerExecutor(Executor)}), or on a shared timer thread if
+	 * there is no listener executor. So listeners should be very light in
+	 * this mode unless they have their own executor.
+	 * 
+	 * @param maxBatchesPerSecond
+	 *            the maximum number of batches to deliver per second (such as
+	 *            30), or zero to notify listeners of every event as it
+	 *            happens.
+	 */
+	public void setListenerBatching(int maxBatchesPerSecond) {
+		if (maxBatchesPerSecond < 0)
+			throw new IllegalArgumentException("maxBatchesPerSecond ("
+					+ maxBatchesPerSecond + ") must not be negative");
+		this.maxBatchesPerSecond = maxBatchesPerSecond;
+	}
+
+	/**
+	 * Return the maximum number of batches of listener notifications
+	 * delivered per second, or zero if notifications are not batched.
+	 * 
+	 * @see #setListenerBatching(int)
+	 */
+	public int getListenerBatching() {
+		return maxBatchesPerSecond;
+	}
+
+	/**
+	 * Assign the maximum number of jobs of a resource class that may run at
+	 * once.
+	 * <p>
+	 * When a resource class is saturated, its jobs wait in the queue and
+	 * workers move on to the next eligible job. By default resource classes
+	 * are unlimited (aside from the number of threads this JobManager uses).
+	 * <p>
+	 * In {@link ExecutionMode#VIRTUAL_THREADS} mode, jobs that have a resource
+	 * class are limited by their resource class instead of the thread count.
+	 * 
+	 * @param resourceClass
+	 *            the name of a resource class (see
+	 *            {@link Job#setResourceClass(String)}).
+	 * @param limit
+	 *            the maximum number of jobs of this resource class that may
+	 *            run at once.
+	 */
+	public void setConcurrencyLimit(String resourceClass, int limit) {
+		if (resourceClass == null)
+			throw new NullPointerException();
+		if (limit < 1)
+			throw new IllegalArgumentException("limit (" + limit
+					+ ") must be at least 1");
+		int waitingCount;
+		synchronized (queue) {
+			queue.setConcurrencyLimit(resourceClass, limit);
+			waitingCount = queue.size();
+		}
+		// if the limit increased then waiting jobs may be able to start
+		wakeWorkers(Math.min(limit, waitingCount));
+	}
+
+	/**
+	 * Return the maximum number of jobs of a resource class that may run at
+	 * once, or Integer.MAX_VALUE if it is unlimited.
+	 * 
+	 * @see #setConcurrencyLimit(String, int)
+	 */
+	public int getConcurrencyLimit(String resourceClass) {
+		synchronized (queue) {
+			return queue.getConcurrencyLimit(resourceClass);
+		}
+	}
+
+	/**
+	 * Limit how often jobs of a resource class may start, using a token
+	 * bucket.
+	 * <p>
+	 * Each job of this resource class needs a token to start. Tokens
+	 * accumulate at <code>jobsPerSecond</code>, up to <code>burst</code>
+	 * tokens. While a resource class has no tokens its jobs wait in the queue
+	 * without occupying a worker thread, and workers move on to other jobs.
+	 * 
+	 * @param resourceClass
+	 *            the name of a resource class (see
+	 *            {@link Job#setResourceClass(String)}).
+	 * @param jobsPerSecond
+	 *            the number of jobs that may start per second, or
+	 *            <code>Double.POSITIVE_INFINITY</code> to remove the rate
+	 *            limit.
+	 * @param burst
+	 *            the number of jobs that may start at once after this
+	 *            resource class has been idle.
+	 */
+	public void setRateLimit(String resourceClass, double jobsPerSecond,
+			int burst) {
+		if (resourceClass == null)
+			throw new NullPointerException();
+		if (!(jobsPerSecond > 0))
+			throw new IllegalArgumentException("jobsPerSecond ("
+					+ jobsPerSecond + ") must be positive");
+		if (burst < 1)
+			throw new IllegalArgumentException("burst (" + burst
+					+ ") must be at least 1");
+		int waitingCount;
+		synchronized (queue) {
+			queue.setRateLimit(resourceClass, jobsPerSecond, burst);
+			waitingCount = queue.size();
+		}
+		wakeWorkers(Math.min(burst, waitingCount));
+	}
+
+	/**
+	 * Return the number of jobs of a resource class that may start per
+	 * second, or <code>Double.POSITIVE_INFINITY</code> if it is not rate
+	 * limited.
+	 * 
+	 * @see #setRateLimit(String, double, int)
+	 */
+	public double getRateLimit(String resourceClass) {
+		synchronized (queue) {
+			return queue.getRateLimit(resourceClass);
+		}
+	}
+
+	/**
+	 * Return the latency statistics of the jobs this manager has run.
+	 */
+	public JobStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * Register this manager's {@link #getStatistics() statistics} with the
+	 * platform MBeanServer.
+	 * 
+	 * @param name
+	 *            a name that distinguishes this manager from other managers.
+	 * @return the ObjectName the statistics were registered under, which
+	 *         should be unregistered when this manager is no longer used.
+	 */
+	public ObjectName registerMBean(String name) throws JMException {
+		ObjectName objectName = new ObjectName(
+				"com.pump.job:type=JobStatistics,name="
+						+ ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(statistics,
+				objectName);
+		return objectName;
+	}
+
+	private void fireErrorListener(Job job, Throwable t) {
+		fire(new ListenerEvent(job, t));
+	}
+
+	private void fireListeners(int type, Job... job) {
+		fire(new ListenerEvent(type, job));
+	}
+
+	private void fire(ListenerEvent event) {
+		if (listeners.isEmpty())
+			return;
+
+		if (listenerExecutor == null && maxBatchesPerSecond == 0) {
+			deliver(event);
+		} else {
+			pendingEvents.add(event);
+			if (deliveringEvents.compareAndSet(false, true))
+				scheduleDelivery();
+		}
+	}
+
+	/**
+	 * Schedule {@link #deliverPendingEventsRunnable}. This must only be called
+	 * by whoever set {@link #deliveringEvents} to true.
+	 */
+	private void scheduleDelivery() {
+		int batchesPerSecond = maxBatchesPerSecond;
+		if (batchesPerSecond == 0) {
+			batchTimerRunnable.run();
+		} else {
+			long interval = 1000000000L / batchesPerSecond;
+			JobTimer.schedule(batchTimerRunnable, lastBatchTime + interval
+					- System.nanoTime());
+		}
+	}
+
+	private void deliver(ListenerEvent event) {
+		for (Listener l : listeners) {
+			try {
+				event.deliver(this, l);
+			} catch (Throwable t) {
+				t.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Remove all pending jobs.
+	 * 
+	 * @param cancelActiveJobs
+	 *            if true then this additionally cancels every active job.
+	 * @return true if any pending jobs were removed.
+	 */
+	public boolean removeAllJobs(boolean cancelActiveJobs) {
+		List<JobHandle> removedHandles = new ArrayList<JobHandle>();
+		synchronized (queue) {
+			for (JobHandle handle : forkedJobs) {
+				// a forked job may start at any moment, so claim it first
+				if (forkedJobs.remove(handle))
+					removedHandles.add(handle);
+			}
+			for (JobHandle handle : queue.toSortedArray()) {
+				removedHandles.add(handle);
+				forgetReplacementId(handle);
+			}
+			for (JobHandle handle : blockedJobs) {
+				removedHandles.add(handle);
+				forgetReplacementId(handle);
+			}
+			for (JobHandle handle : delayedJobs) {
+				removedHandles.add(handle);
+				forgetReplacementId(handle);
+			}
+			for (JobHandle handle : removedHandles) {
+				pendingRemoved(handle);
+			}
+			// jobs waiting for an identical job are removed with it
+			for (int a = 0; a < removedHandles.size(); a++) {
+				JobHandle handle = removedHandles.get(a);
+				if (handle.cacheKey != null) {
+					List<JobHandle> duplicates = finishInFlight(handle, false);
+					if (duplicates != null)
+						removedHandles.addAll(duplicates);
+				}
+			}
+			queue.clear();
+			blockedJobs.clear();
+			delayedJobs.clear();
+			for (Dependency dependency : waitingJobs.values()) {
+				unregister(dependency);
+			}
+			waitingJobs.clear();
+		}
+
+		if (cancelActiveJobs) {
+			for (Job j : getActiveJobs()) {
+				j.cancel();
+			}
+		}
+		// invoke this outside of the sync lock
+		if (removedHandles.size() > 0)
+			skipped(removedHandles);
+		return removedHandles.size() > 0;
+	}
 }
\ No newline at end of file
@@ -0,0 +1,133 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Latency statistics for the jobs a {@link JobManager} executes, broken down
+ * by {@link Job#getPriority() priority}.
+ * <p>
+ * For each priority this records two {@link LatencyHistogram
+ * LatencyHistograms}: how long jobs waited after they were ready to start
+ * (that is: after all their dependencies finished) until a worker started
+ * them, and how long <code>Job.run()</code> took. Recording is lock-free.
+ * <p>
+ * This is also a standard MBean, so it can be registered with an MBeanServer
+ * (see {@link JobManager#registerMBean(String)}).
+ */
+public class JobStatistics implements JobStatisticsMBean {
+
+	private static class Entry {
+		final LatencyHistogram queueWait = new LatencyHistogram();
+		final LatencyHistogram runTime = new LatencyHistogram();
+	}
+
+	private final ConcurrentMap<Integer, Entry> entries = new ConcurrentHashMap<Integer, Entry>();
+
+	private Entry getEntry(int priority) {
+		Entry entry = entries.get(priority);
+		if (entry == null) {
+			entry = new Entry();
+			Entry existing = entries.putIfAbsent(priority, entry);
+			if (existing != null)
+				entry = existing;
+		}
+		return entry;
+	}
+
+	/**
+	 * Record the latency of one job.
+	 * 
+	 * @param priority
+	 *            the priority the job was submitted with.
+	 * @param queueWait
+	 *            the nanoseconds between when the job was ready and when it
+	 *            started.
+	 * @param runTime
+	 *            the nanoseconds the job took to run.
+	 */
+	void record(int priority, long queueWait, long runTime) {
+		Entry entry = getEntry(priority);
+		entry.queueWait.record(queueWait);
+		entry.runTime.record(runTime);
+	}
+
+	/**
+	 * Return the histogram of queue wait times for a priority. This returns
+	 * an empty histogram if no jobs of this priority have finished.
+	 */
+	public LatencyHistogram getQueueWaitHistogram(int priority) {
+		Entry entry = entries.get(priority);
+		return entry == null ? new LatencyHistogram() : entry.queueWait;
+	}
+
+	/**
+	 * Return the histogram of run times for a priority. This returns an empty
+	 * histogram if no jobs of this priority have finished.
+	 */
+	public LatencyHistogram getRunTimeHistogram(int priority) {
+		Entry entry = entries.get(priority);
+		return entry == null ? new LatencyHistogram() : entry.runTime;
+	}
+
+	@Override
+	public int[] getPriorities() {
+		Integer[] keys = entries.keySet().toArray(new Integer[0]);
+		int[] returnValue = new int[keys.length];
+		for (int a = 0; a < keys.length; a++) {
+			returnValue[a] = keys[a];
+		}
+		Arrays.sort(returnValue);
+		return returnValue;
+	}
+
+	@Override
+	public long getCompletedJobCount() {
+		long sum = 0;
+		for (Entry entry : entries.values()) {
+			sum += entry.runTime.getCount();
+		}
+		return sum;
+	}
+
+	@Override
+	public long getQueueWaitPercentile(int priority, double percentile) {
+		return getQueueWaitHistogram(priority).getValueAtPercentile(percentile);
+	}
+
+	@Override
+	public long getRunTimePercentile(int priority, double percentile) {
+		return getRunTimeHistogram(priority).getValueAtPercentile(percentile);
+	}
+
+	@Override
+	public void reset() {
+		for (Entry entry : entries.values()) {
+			entry.queueWait.reset();
+			entry.runTime.reset();
+		}
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder("JobStatistics[");
+		for (int priority : getPriorities()) {
+			sb.append(" priority " + priority + ": wait="
+					+ getQueueWaitHistogram(priority) + ", run="
+					+ getRunTimeHistogram(priority) + ";");
+		}
+		sb.append(" ]");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,49 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job;
+
+/**
+ * The JMX management interface for {@link JobStatistics}.
+ * <p>
+ * All durations are measured in nanoseconds.
+ */
+public interface JobStatisticsMBean {
+
+	/** Return every job priority that has been recorded, in ascending order. */
+	public int[] getPriorities();
+
+	/** Return the number of jobs that have finished running. */
+	public long getCompletedJobCount();
+
+	/**
+	 * Return how long jobs of a given priority waited for a worker after they
+	 * were ready to start.
+	 * 
+	 * @param priority
+	 *            the job priority.
+	 * @param percentile
+	 *            a percentile from 0 to 100.
+	 */
+	public long getQueueWaitPercentile(int priority, double percentile);
+
+	/**
+	 * Return how long jobs of a given priority took to run.
+	 * 
+	 * @param priority
+	 *            the job priority.
+	 * @param percentile
+	 *            a percentile from 0 to 100.
+	 */
+	public long getRunTimePercentile(int priority, double percentile);
+
+	/** Discard all recorded statistics. */
+	public void reset();
+}
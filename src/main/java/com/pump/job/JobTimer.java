@@ -0,0 +1,54 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A shared daemon thread used to schedule short, delayed tasks for jobs and
+ * {@link JobManager JobManagers}.
+ * <p>
+ * Tasks scheduled here should be very light. Anything expensive should be
+ * handed off to another executor.
+ */
+class JobTimer {
+	private static ScheduledThreadPoolExecutor executor;
+
+	private static synchronized ScheduledExecutorService get() {
+		if (executor == null) {
+			executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "JobTimer");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			executor.setRemoveOnCancelPolicy(true);
+		}
+		return executor;
+	}
+
+	/**
+	 * Run a task after a delay.
+	 *
+	 * @param task
+	 *            the task to run.
+	 * @param delayNanos
+	 *            the delay in nanoseconds. If this is zero or negative then
+	 *            the task runs as soon as possible.
+	 */
+	static void schedule(Runnable task, long delayNanos) {
+		get().schedule(task, Math.max(0, delayNanos), TimeUnit.NANOSECONDS);
+	}
+}
@@ -0,0 +1,156 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of durations, measured in nanoseconds.
+ * <p>
+ * Values are recorded into logarithmic buckets (similar to HdrHistogram): each
+ * power of two is split into 16 linear sub-buckets, so every recorded value is
+ * reported within about 6% of its actual value. Recording a value is a few
+ * atomic increments, so this is safe to call from any number of threads.
+ * <p>
+ * Reading this histogram while values are being recorded returns a weakly
+ * consistent result: a value may be counted in one statistic and not yet in
+ * another.
+ */
+public class LatencyHistogram {
+
+	/** The number of sub-buckets each power of two is divided into. */
+	private static final int SUB_BUCKET_COUNT = 16;
+	private static final int SUB_BUCKET_BITS = 4;
+
+	/** Values below this are recorded exactly. */
+	private static final int LINEAR_LIMIT = 2 * SUB_BUCKET_COUNT;
+
+	private static final int BUCKET_COUNT = SUB_BUCKET_COUNT
+			* (64 - SUB_BUCKET_BITS);
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+	private final LongAdder totalCount = new LongAdder();
+	private final LongAdder totalValue = new LongAdder();
+	private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+	/**
+	 * Return the index of the bucket a value is recorded in.
+	 */
+	private static int getBucketIndex(long value) {
+		if (value < LINEAR_LIMIT)
+			return (int) value;
+		int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) - SUB_BUCKET_COUNT;
+		return SUB_BUCKET_COUNT * (shift + 1) + subBucket;
+	}
+
+	/**
+	 * Return the largest value that is recorded in a bucket.
+	 */
+	private static long getBucketMaximum(int index) {
+		if (index < LINEAR_LIMIT)
+			return index;
+		int shift = index / SUB_BUCKET_COUNT - 1;
+		long subBucket = index % SUB_BUCKET_COUNT + SUB_BUCKET_COUNT;
+		return ((subBucket + 1) << shift) - 1;
+	}
+
+	/**
+	 * Record a duration.
+	 * 
+	 * @param nanos
+	 *            the duration in nanoseconds. Negative values are recorded as
+	 *            zero.
+	 */
+	public void record(long nanos) {
+		if (nanos < 0)
+			nanos = 0;
+		counts.incrementAndGet(getBucketIndex(nanos));
+		totalCount.increment();
+		totalValue.add(nanos);
+		max.accumulate(nanos);
+	}
+
+	/** Return the number of values recorded. */
+	public long getCount() {
+		return totalCount.sum();
+	}
+
+	/** Return the largest value recorded, in nanoseconds. */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Return the average value recorded, in nanoseconds, or zero if no values
+	 * have been recorded.
+	 */
+	public double getMean() {
+		long count = totalCount.sum();
+		if (count == 0)
+			return 0;
+		return ((double) totalValue.sum()) / count;
+	}
+
+	/**
+	 * Return the value at a given percentile, in nanoseconds.
+	 * 
+	 * @param percentile
+	 *            a percentile from 0 to 100, such as 50 (the median) or 99.
+	 * @return the approximate value that this percentage of the recorded
+	 *         values are less than or equal to, or zero if no values have been
+	 *         recorded.
+	 */
+	public long getValueAtPercentile(double percentile) {
+		if (!(percentile >= 0 && percentile <= 100))
+			throw new IllegalArgumentException("percentile (" + percentile
+					+ ") must be between 0 and 100");
+		long[] snapshot = new long[BUCKET_COUNT];
+		long count = 0;
+		for (int a = 0; a < BUCKET_COUNT; a++) {
+			snapshot[a] = counts.get(a);
+			count += snapshot[a];
+		}
+		if (count == 0)
+			return 0;
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+		long sum = 0;
+		for (int a = 0; a < BUCKET_COUNT; a++) {
+			sum += snapshot[a];
+			if (sum >= target)
+				return Math.min(getBucketMaximum(a), getMax());
+		}
+		return getMax();
+	}
+
+	/**
+	 * Discard all recorded values. Values recorded while this method is
+	 * running may or may not be discarded.
+	 */
+	public void reset() {
+		for (int a = 0; a < BUCKET_COUNT; a++) {
+			counts.set(a, 0);
+		}
+		totalCount.reset();
+		totalValue.reset();
+		max.reset();
+	}
+
+	@Override
+	public String toString() {
+		return "LatencyHistogram[ count=" + getCount() + ", mean="
+				+ (long) getMean() + ", p50=" + getValueAtPercentile(50)
+				+ ", p99=" + getValueAtPercentile(99) + ", max=" + getMax()
+				+ " ]";
+	}
+}
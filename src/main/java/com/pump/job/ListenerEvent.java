@@ -0,0 +1,121 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.pump.job.JobManager.Listener;
+
+/**
+ * One notification for the {@link JobManager.Listener JobManager.Listeners}
+ * of a {@link JobManager}.
+ */
+class ListenerEvent {
+	final int type;
+	final Job[] jobs;
+	final Throwable throwable;
+
+	/**
+	 * @param type
+	 *            one of the JobManager's event types (such as
+	 *            {@link JobManager#ADD}).
+	 * @param jobs
+	 *            the jobs this event describes.
+	 */
+	ListenerEvent(int type, Job... jobs) {
+		this.type = type;
+		this.jobs = jobs;
+		this.throwable = null;
+	}
+
+	/**
+	 * Create a {@link JobManager#ERROR} event.
+	 */
+	ListenerEvent(Job job, Throwable throwable) {
+		this.type = JobManager.ERROR;
+		this.jobs = new Job[] { job };
+		this.throwable = throwable;
+	}
+
+	/**
+	 * The order events are delivered in when they are merged. This follows the
+	 * lifecycle of a job: it is queued, then added, then removed or skipped.
+	 */
+	private static final int[] MERGE_ORDER = new int[] { JobManager.QUEUE,
+			JobManager.ADD, JobManager.REMOVE, JobManager.SKIP };
+
+	/**
+	 * Combine several events into at most one event of each type, plus any
+	 * error events. Error events are never combined, because
+	 * {@link Listener#jobError} only accepts one job.
+	 * <p>
+	 * The merged events are ordered by the lifecycle of a job, so any one job
+	 * is still reported as queued before it is added, and added before it is
+	 * removed. Within each type jobs keep the order they were reported in.
+	 *
+	 * @param events
+	 *            a list of events, in the order they occurred.
+	 * @return a list of events that describes the same jobs.
+	 */
+	static List<ListenerEvent> merge(List<ListenerEvent> events) {
+		List<ListenerEvent> returnValue = new ArrayList<ListenerEvent>();
+		for (int type : MERGE_ORDER) {
+			int jobCount = 0;
+			ListenerEvent lastEvent = null;
+			for (ListenerEvent event : events) {
+				if (event.type == type) {
+					jobCount += event.jobs.length;
+					lastEvent = event;
+				}
+			}
+			if (lastEvent == null)
+				continue;
+			if (jobCount == lastEvent.jobs.length) {
+				returnValue.add(lastEvent);
+				continue;
+			}
+			Job[] jobs = new Job[jobCount];
+			int k = 0;
+			for (ListenerEvent event : events) {
+				if (event.type == type) {
+					System.arraycopy(event.jobs, 0, jobs, k, event.jobs.length);
+					k += event.jobs.length;
+				}
+			}
+			returnValue.add(new ListenerEvent(type, jobs));
+		}
+		for (ListenerEvent event : events) {
+			if (event.type == JobManager.ERROR)
+				returnValue.add(event);
+		}
+		return returnValue;
+	}
+
+	/**
+	 * Notify a listener of this event.
+	 */
+	void deliver(JobManager manager, Listener l) {
+		if (type == JobManager.ERROR) {
+			l.jobError(manager, jobs[0], throwable);
+		} else if (type == JobManager.ADD) {
+			l.jobAdded(manager, jobs);
+		} else if (type == JobManager.REMOVE) {
+			l.jobRemoved(manager, jobs);
+		} else if (type == JobManager.SKIP) {
+			l.jobSkipped(manager, jobs);
+		} else if (type == JobManager.QUEUE) {
+			l.jobQueued(manager, jobs);
+		} else {
+			throw new RuntimeException("Unrecognized type: " + type);
+		}
+	}
+}
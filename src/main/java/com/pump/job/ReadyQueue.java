@@ -0,0 +1,391 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * The jobs in a {@link JobManager} that are ready to start.
+ * <p>
+ * Jobs are kept in separate lanes depending on how they are throttled. Each
+ * lane is a {@link JobHeap} with its own concurrency limit: there is one lane
+ * for each resource class (see {@link Job#setResourceClass(String)}), one for
+ * CPU-bound jobs and (optionally) one for blocking jobs. A resource class may
+ * also have a token bucket that limits how often its jobs start.
+ * {@link #poll()} returns the highest priority job that is allowed to start
+ * right now, and skips over lanes that are saturated or out of tokens.
+ * <p>
+ * This class is not thread-safe.
+ */
+class ReadyQueue {
+
+	/** A heap of jobs that share a concurrency limit and rate limit. */
+	private static class Lane {
+		final JobHeap heap = new JobHeap();
+		int limit;
+		int running = 0;
+
+		/**
+		 * The number of jobs that may start per second, or infinity if this
+		 * lane is not rate limited.
+		 */
+		double rate = Double.POSITIVE_INFINITY;
+
+		/** The maximum number of tokens this lane can accumulate. */
+		int burst;
+		double tokens;
+		long lastRefill;
+
+		Lane(int limit) {
+			this.limit = limit;
+		}
+
+		boolean isRateLimited() {
+			return rate != Double.POSITIVE_INFINITY;
+		}
+
+		void refill(long now) {
+			tokens = Math.min(burst, tokens + (now - lastRefill) * rate / 1e9);
+			lastRefill = now;
+		}
+
+		/**
+		 * Return the next handle in this lane that may start, or null.
+		 * 
+		 * @param now
+		 *            the current System.nanoTime(), if any lane is rate
+		 *            limited.
+		 */
+		JobHandle peek(long now) {
+			if (running >= limit)
+				return null;
+			if (isRateLimited()) {
+				refill(now);
+				if (tokens < 1)
+					return null;
+			}
+			return heap.peek();
+		}
+	}
+
+	/** Jobs that count against the CPU limit. */
+	private final Lane cpuJobs;
+
+	/** Blocking jobs, if they are kept separate from CPU-bound jobs. */
+	private final Lane blockingJobs = new Lane(Integer.MAX_VALUE);
+
+	private final Map<String, Lane> resourceClasses = new HashMap<String, Lane>();
+
+	/** Every lane, including {@link #cpuJobs} and {@link #blockingJobs}. */
+	private final List<Lane> lanes = new ArrayList<Lane>();
+
+	private final boolean separateBlockingJobs;
+
+	/** The number of lanes that have a rate limit. */
+	private int rateLimitedLanes = 0;
+
+	/**
+	 * Create a ReadyQueue that doesn't throttle anything.
+	 */
+	ReadyQueue() {
+		this(Integer.MAX_VALUE, false);
+	}
+
+	/**
+	 * @param cpuLimit
+	 *            the maximum number of CPU-bound jobs that may run at once.
+	 * @param separateBlockingJobs
+	 *            if true then blocking jobs (see {@link Job#isBlocking()}) are
+	 *            exempt from the <code>cpuLimit</code>.
+	 */
+	ReadyQueue(int cpuLimit, boolean separateBlockingJobs) {
+		cpuJobs = new Lane(cpuLimit);
+		this.separateBlockingJobs = separateBlockingJobs;
+		lanes.add(cpuJobs);
+		lanes.add(blockingJobs);
+	}
+
+	private Lane getLane(JobHandle handle) {
+		if (handle.resourceClass != null)
+			return getResourceClass(handle.resourceClass);
+		if (separateBlockingJobs && handle.blocking)
+			return blockingJobs;
+		return cpuJobs;
+	}
+
+	private Lane getResourceClass(String name) {
+		Lane lane = resourceClasses.get(name);
+		if (lane == null) {
+			lane = new Lane(Integer.MAX_VALUE);
+			resourceClasses.put(name, lane);
+			lanes.add(lane);
+		}
+		return lane;
+	}
+
+	/**
+	 * Assign the maximum number of jobs of a resource class that may run at
+	 * once.
+	 */
+	public void setConcurrencyLimit(String resourceClass, int limit) {
+		getResourceClass(resourceClass).limit = limit;
+	}
+
+	/**
+	 * Return the maximum number of jobs of a resource class that may run at
+	 * once.
+	 */
+	public int getConcurrencyLimit(String resourceClass) {
+		Lane lane = resourceClasses.get(resourceClass);
+		return lane == null ? Integer.MAX_VALUE : lane.limit;
+	}
+
+	/**
+	 * Assign the token bucket of a resource class.
+	 * 
+	 * @param jobsPerSecond
+	 *            the number of jobs that may start per second, or infinity
+	 *            to remove the rate limit.
+	 * @param burst
+	 *            the number of jobs that may start at once after this
+	 *            resource class has been idle.
+	 */
+	public void setRateLimit(String resourceClass, double jobsPerSecond,
+			int burst) {
+		Lane lane = getResourceClass(resourceClass);
+		if (lane.isRateLimited())
+			rateLimitedLanes--;
+		lane.rate = jobsPerSecond;
+		lane.burst = burst;
+		lane.tokens = burst;
+		lane.lastRefill = System.nanoTime();
+		if (lane.isRateLimited())
+			rateLimitedLanes++;
+	}
+
+	/**
+	 * Return the number of jobs of a resource class that may start per
+	 * second, or infinity if it is not rate limited.
+	 */
+	public double getRateLimit(String resourceClass) {
+		Lane lane = resourceClasses.get(resourceClass);
+		return lane == null ? Double.POSITIVE_INFINITY : lane.rate;
+	}
+
+	/**
+	 * Return the number of nanoseconds until a job that is only waiting for a
+	 * token may start, or -1 if no job is waiting for a token.
+	 */
+	public long getTokenDelay() {
+		if (rateLimitedLanes == 0)
+			return -1;
+		long now = System.nanoTime();
+		long delay = -1;
+		for (Lane lane : lanes) {
+			if (lane.isRateLimited() && lane.running < lane.limit
+					&& !lane.heap.isEmpty()) {
+				lane.refill(now);
+				long laneDelay = (long) Math.ceil((1 - lane.tokens) / lane.rate
+						* 1e9);
+				laneDelay = Math.max(0, laneDelay);
+				if (delay == -1 || laneDelay < delay)
+					delay = laneDelay;
+			}
+		}
+		return delay;
+	}
+
+	/** Add a handle to this queue. */
+	public void add(JobHandle handle) {
+		getLane(handle).heap.add(handle);
+	}
+
+	/**
+	 * Remove a handle from this queue.
+	 *
+	 * @return true if the handle was removed, false if it was not in this
+	 *         queue.
+	 */
+	public boolean remove(JobHandle handle) {
+		return getLane(handle).heap.remove(handle);
+	}
+
+	/**
+	 * Restore the order of this queue after a handle's priority changed.
+	 */
+	public void update(JobHandle handle) {
+		getLane(handle).heap.update(handle);
+	}
+
+	/** Return true if a handle is in this queue. */
+	public boolean contains(JobHandle handle) {
+		return getLane(handle).heap.contains(handle);
+	}
+
+	/**
+	 * Remove every handle that matches a filter.
+	 * 
+	 * @param filter
+	 *            the handles to remove.
+	 * @param removedHandles
+	 *            the removed handles are added to this collection.
+	 */
+	public void removeIf(Predicate<JobHandle> filter,
+			Collection<JobHandle> removedHandles) {
+		for (Lane lane : lanes) {
+			lane.heap.removeIf(filter, removedHandles);
+		}
+	}
+
+	/**
+	 * Remove and return the highest priority handle that may start right now,
+	 * or null if there is no such handle. Every handle this returns must later
+	 * be passed to {@link #release(JobHandle)}.
+	 */
+	public JobHandle poll() {
+		Lane lane = peek();
+		if (lane == null)
+			return null;
+		lane.running++;
+		if (lane.isRateLimited())
+			lane.tokens--;
+		return lane.heap.poll();
+	}
+
+	/**
+	 * Remove a specific handle if its lane allows it to start right now, even
+	 * if it is not the highest priority handle. If this returns true then the
+	 * handle must later be passed to {@link #release(JobHandle)}.
+	 * 
+	 * @return true if the handle was removed, false if it is not in this
+	 *         queue or its lane is saturated or out of tokens.
+	 */
+	public boolean poll(JobHandle handle) {
+		Lane lane = getLane(handle);
+		if (!lane.heap.contains(handle))
+			return false;
+		long now = lane.isRateLimited() ? System.nanoTime() : 0;
+		if (lane.peek(now) == null)
+			return false;
+		lane.running++;
+		if (lane.isRateLimited())
+			lane.tokens--;
+		return lane.heap.remove(handle);
+	}
+
+	/**
+	 * Return the handle {@link #poll()} would return right now, without
+	 * removing it, or null.
+	 */
+	public JobHandle peekNext() {
+		Lane lane = peek();
+		return lane == null ? null : lane.heap.peek();
+	}
+
+	/**
+	 * Return true if {@link #poll()} would return a handle right now.
+	 */
+	public boolean isJobAvailable() {
+		return peek() != null;
+	}
+
+	/**
+	 * Return the lane whose next handle should start now, or null.
+	 */
+	private Lane peek() {
+		long now = rateLimitedLanes == 0 ? 0 : System.nanoTime();
+		Lane nextLane = null;
+		JobHandle next = null;
+		for (int a = 0; a < lanes.size(); a++) {
+			Lane lane = lanes.get(a);
+			JobHandle head = lane.peek(now);
+			if (head != null && (next == null || head.precedes(next))) {
+				next = head;
+				nextLane = lane;
+			}
+		}
+		return nextLane;
+	}
+
+	/**
+	 * Indicate that a handle previously returned by {@link #poll()} is no
+	 * longer running.
+	 */
+	public void release(JobHandle handle) {
+		getLane(handle).running--;
+	}
+
+	/** Return the number of handles in this queue. */
+	public int size() {
+		int sum = 0;
+		for (Lane lane : lanes) {
+			sum += lane.heap.size();
+		}
+		return sum;
+	}
+
+	/**
+	 * Return the handle at a given index. The order of handles is an
+	 * implementation detail; this is only useful to iterate over every
+	 * element.
+	 */
+	public JobHandle get(int index) {
+		for (Lane lane : lanes) {
+			if (index < lane.heap.size())
+				return lane.heap.get(index);
+			index -= lane.heap.size();
+		}
+		throw new IndexOutOfBoundsException();
+	}
+
+	/**
+	 * Return the handle that would be executed last, or null if this queue is
+	 * empty. This only visits the leaves of each heap, but it still costs
+	 * O(n).
+	 */
+	public JobHandle getLast() {
+		JobHandle last = null;
+		for (Lane lane : lanes) {
+			for (int a = lane.heap.size() / 2; a < lane.heap.size(); a++) {
+				JobHandle handle = lane.heap.get(a);
+				if (last == null || last.precedes(handle))
+					last = handle;
+			}
+		}
+		return last;
+	}
+
+	/** Return all the handles in this queue, in order of priority. */
+	public JobHandle[] toSortedArray() {
+		JobHandle[] returnValue = new JobHandle[size()];
+		int k = 0;
+		for (Lane lane : lanes) {
+			for (int a = 0; a < lane.heap.size(); a++) {
+				returnValue[k++] = lane.heap.get(a);
+			}
+		}
+		Arrays.sort(returnValue, JobHeap.EXECUTION_ORDER);
+		return returnValue;
+	}
+
+	/** Remove every handle from this queue. */
+	public void clear() {
+		for (Lane lane : lanes) {
+			lane.heap.clear();
+		}
+	}
+}
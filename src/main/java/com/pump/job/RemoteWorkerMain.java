@@ -0,0 +1,172 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.PrintStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The entry point of a worker process launched by a {@link JobManager} in
+ * {@link JobManager.ExecutionMode#PROCESS_POOL} mode.
+ * <p>
+ * This reads jobs from standard input, runs them one at a time, and writes
+ * each result to standard output. Anything the jobs print to
+ * <code>System.out</code> is redirected to <code>System.err</code>. This
+ * exits when standard input is closed.
+ */
+public class RemoteWorkerMain {
+
+	private final ObjectInputStream in;
+	private final ObjectOutputStream out;
+	private final ExecutorService executor = Executors
+			.newSingleThreadExecutor();
+	private volatile Job currentJob;
+	private volatile long currentRequestId;
+
+	private RemoteWorkerMain(ObjectInputStream in, ObjectOutputStream out) {
+		this.in = in;
+		this.out = out;
+	}
+
+	public static void main(String[] args) throws IOException {
+		ObjectOutputStream out = new ObjectOutputStream(
+				new BufferedOutputStream(new FileOutputStream(
+						FileDescriptor.out)));
+		out.flush();
+		System.setOut(new PrintStream(new FileOutputStream(
+				FileDescriptor.err), true));
+		ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(
+				System.in));
+		new RemoteWorkerMain(in, out).run();
+		System.exit(0);
+	}
+
+	private void run() throws IOException {
+		while (true) {
+			byte command;
+			try {
+				command = in.readByte();
+			} catch (EOFException e) {
+				return;
+			}
+			if (command == RemoteWorkerPool.COMMAND_RUN) {
+				long requestId = in.readLong();
+				String name = in.readUTF();
+				final Job job;
+				try {
+					job = (Job) in.readObject();
+				} catch (ClassNotFoundException e) {
+					writeResult(null, e);
+					continue;
+				}
+				job.setName(name);
+				currentRequestId = requestId;
+				currentJob = job;
+				executor.execute(new Runnable() {
+					public void run() {
+						Throwable throwable = null;
+						try {
+							job.run();
+						} catch (Throwable t) {
+							throwable = t;
+							// unwrap the checked exceptions Job.run() wraps
+							if (t.getClass() == RuntimeException.class
+									&& t.getCause() instanceof Exception
+									&& !(t.getCause() instanceof RuntimeException))
+								throwable = t.getCause();
+						}
+						currentJob = null;
+						writeResult(job, throwable);
+					}
+				});
+			} else if (command == RemoteWorkerPool.COMMAND_CANCEL) {
+				long requestId = in.readLong();
+				Job job = currentJob;
+				if (job != null && requestId == currentRequestId)
+					job.cancel();
+			}
+		}
+	}
+
+	/**
+	 * Write the result of a job.
+	 * 
+	 * @param job
+	 *            the job that finished, if it could be deserialized.
+	 * @param throwable
+	 *            the exception the job threw, or null if it finished
+	 *            successfully.
+	 */
+	private void writeResult(Job job, Throwable throwable) {
+		try {
+			byte[] serializedThrowable = null;
+			if (throwable != null)
+				serializedThrowable = serialize(throwable);
+			synchronized (out) {
+				out.reset();
+				if (throwable == null) {
+					out.writeByte(RemoteWorkerPool.RESPONSE_FINISHED);
+					if (job instanceof ResultJob)
+						out.writeObject(((ResultJob<?>) job).getResult());
+				} else {
+					out.writeByte(RemoteWorkerPool.RESPONSE_FAILED);
+					out.writeObject(serializedThrowable == null ? describe(throwable)
+							: throwable);
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			// the parent process is gone
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Return the serialized form of a throwable, or null if it can't be
+	 * serialized.
+	 */
+	private static byte[] serialize(Throwable throwable) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			try (ObjectOutputStream objOut = new ObjectOutputStream(bytes)) {
+				objOut.writeObject(throwable);
+			}
+			return bytes.toByteArray();
+		} catch (NotSerializableException e) {
+			return null;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Describe a throwable that can't be serialized.
+	 */
+	private static RuntimeException describe(Throwable throwable) {
+		StringWriter stackTrace = new StringWriter();
+		throwable.printStackTrace(new PrintWriter(stackTrace));
+		return new RuntimeException(throwable.toString() + "\n"
+				+ stackTrace);
+	}
+}
@@ -0,0 +1,186 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job;
+
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The child JVMs a {@link JobManager} uses in
+ * {@link JobManager.ExecutionMode#PROCESS_POOL} mode.
+ * <p>
+ * Each child runs {@link RemoteWorkerMain} and communicates over its standard
+ * input and output. Children are started as needed and reused; a child that
+ * crashes is discarded and replaced the next time a job needs one. Children
+ * exit when this process exits, because their standard input closes.
+ */
+class RemoteWorkerPool {
+
+	static final byte COMMAND_RUN = 1;
+	static final byte COMMAND_CANCEL = 2;
+	static final byte RESPONSE_FINISHED = 1;
+	static final byte RESPONSE_FAILED = 2;
+
+	/** One child JVM. */
+	private class Worker {
+		final Process process;
+		final ObjectOutputStream out;
+		final ObjectInputStream in;
+
+		/** The number of jobs sent to this worker. */
+		long requestCount = 0;
+
+		Worker() throws IOException {
+			List<String> command = new ArrayList<String>();
+			command.add(System.getProperty("java.home") + File.separator
+					+ "bin" + File.separator + "java");
+			command.addAll(jvmArguments);
+			command.add("-cp");
+			command.add(System.getProperty("java.class.path"));
+			command.add(RemoteWorkerMain.class.getName());
+			ProcessBuilder builder = new ProcessBuilder(command);
+			builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+			process = builder.start();
+			out = new ObjectOutputStream(new BufferedOutputStream(
+					process.getOutputStream()));
+			out.flush();
+			in = new ObjectInputStream(new BufferedInputStream(
+					process.getInputStream()));
+		}
+
+		/**
+		 * Run a job in this worker and wait for it to finish.
+		 * 
+		 * @return the exception the job threw, or null if it finished
+		 *         successfully.
+		 * @throws IOException
+		 *             if this worker failed.
+		 */
+		Throwable execute(final Job job) throws IOException,
+				ClassNotFoundException {
+			final long requestId = ++requestCount;
+			synchronized (out) {
+				// reset so a resubmitted job isn't sent as a back-reference
+				out.reset();
+				out.writeByte(COMMAND_RUN);
+				out.writeLong(requestId);
+				out.writeUTF(job.getName());
+				out.writeObject(job);
+				out.flush();
+			}
+			ActionListener cancelListener = new ActionListener() {
+				public void actionPerformed(ActionEvent e) {
+					if (job.isCancelled())
+						sendCancel(requestId);
+				}
+			};
+			job.addCancelListener(cancelListener);
+			try {
+				if (job.isCancelled())
+					sendCancel(requestId);
+				byte response;
+				try {
+					response = in.readByte();
+				} catch (EOFException e) {
+					throw new IOException("the worker process exited while running \""
+							+ job.getName() + "\"", e);
+				}
+				if (response == RESPONSE_FAILED)
+					return (Throwable) in.readObject();
+				if (response != RESPONSE_FINISHED)
+					throw new IOException("unexpected response: " + response);
+				if (job instanceof ResultJob)
+					((ResultJob<?>) job).setResult(in.readObject());
+				return null;
+			} finally {
+				job.removeCancelListener(cancelListener);
+			}
+		}
+
+		/**
+		 * Cancel a job. The request id makes sure a late cancellation doesn't
+		 * affect the next job this worker runs.
+		 */
+		void sendCancel(long requestId) {
+			try {
+				synchronized (out) {
+					out.writeByte(COMMAND_CANCEL);
+					out.writeLong(requestId);
+					out.flush();
+				}
+			} catch (IOException e) {
+				// if the worker is gone then the job is already over
+			}
+		}
+
+		boolean isAlive() {
+			return process.isAlive();
+		}
+	}
+
+	private final ConcurrentLinkedQueue<Worker> idleWorkers = new ConcurrentLinkedQueue<Worker>();
+	private volatile List<String> jvmArguments = new ArrayList<String>();
+
+	/**
+	 * Assign the JVM arguments (such as "-Xmx2g") used to launch new worker
+	 * processes.
+	 */
+	void setJVMArguments(String... jvmArguments) {
+		this.jvmArguments = new ArrayList<String>(Arrays.asList(jvmArguments));
+	}
+
+	/** Return the JVM arguments used to launch new worker processes. */
+	String[] getJVMArguments() {
+		return jvmArguments.toArray(new String[0]);
+	}
+
+	/**
+	 * Run a job in an idle worker process (starting one if necessary) and
+	 * wait for it to finish.
+	 * <p>
+	 * Only the copy of the job in the worker process is modified: the job's
+	 * results should be written somewhere both processes can see. (The
+	 * exception is the result of a {@link ResultJob}, which is sent back.)
+	 * 
+	 * @throws Exception
+	 *             the exception the job threw in the worker process, or an
+	 *             IOException if the worker process failed.
+	 */
+	void execute(Job job) throws Exception {
+		Worker worker = idleWorkers.poll();
+		if (worker == null)
+			worker = new Worker();
+		Throwable throwable;
+		try {
+			throwable = worker.execute(job);
+		} catch (IOException | ClassNotFoundException e) {
+			worker.process.destroy();
+			throw e;
+		}
+		if (worker.isAlive())
+			idleWorkers.add(worker);
+		if (throwable instanceof Exception)
+			throw (Exception) throwable;
+		if (throwable != null)
+			throw (Error) throwable;
+	}
+}
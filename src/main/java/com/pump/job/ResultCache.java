@@ -0,0 +1,138 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A least-recently-used cache of the results of {@link ResultJob ResultJobs},
+ * bounded by the total weight of its results.
+ * <p>
+ * Each result's weight is determined by
+ * {@link ResultJob#getResultWeight(Object)}. When adding a result makes the
+ * total weight exceed the maximum, the least recently used results are
+ * evicted. Null results are never cached.
+ * <p>
+ * This class is thread-safe.
+ */
+public class ResultCache {
+
+	private static class Entry {
+		final Object value;
+		final long weight;
+
+		Entry(Object value, long weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<Object, Entry>(
+			16, .75f, true);
+	private final long maxWeight;
+	private long weight = 0;
+	private long hitCount = 0;
+	private long missCount = 0;
+
+	/**
+	 * @param maxWeight
+	 *            the maximum total weight of the results in this cache. If
+	 *            every result has the default weight, then this is the
+	 *            maximum number of results.
+	 */
+	public ResultCache(long maxWeight) {
+		if (maxWeight < 1)
+			throw new IllegalArgumentException("maxWeight (" + maxWeight
+					+ ") must be at least 1");
+		this.maxWeight = maxWeight;
+	}
+
+	/**
+	 * Return the result cached for a key, or null.
+	 */
+	public synchronized Object get(Object key) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			missCount++;
+			return null;
+		}
+		hitCount++;
+		return entry.value;
+	}
+
+	/**
+	 * Add a result to this cache. Results that are heavier than this cache's
+	 * maximum weight are not stored.
+	 */
+	public synchronized void put(Object key, Object value, long weight) {
+		if (weight < 0)
+			throw new IllegalArgumentException("weight (" + weight
+					+ ") must not be negative");
+		Entry oldEntry = entries.remove(key);
+		if (oldEntry != null)
+			this.weight -= oldEntry.weight;
+		if (value == null || weight > maxWeight)
+			return;
+		entries.put(key, new Entry(value, weight));
+		this.weight += weight;
+		Iterator<Entry> iter = entries.values().iterator();
+		while (this.weight > maxWeight) {
+			this.weight -= iter.next().weight;
+			iter.remove();
+		}
+	}
+
+	/** Remove the result cached for a key. */
+	public synchronized void remove(Object key) {
+		Entry entry = entries.remove(key);
+		if (entry != null)
+			weight -= entry.weight;
+	}
+
+	/** Remove every result from this cache. */
+	public synchronized void clear() {
+		entries.clear();
+		weight = 0;
+	}
+
+	/** Return the number of results in this cache. */
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	/** Return the total weight of the results in this cache. */
+	public synchronized long getWeight() {
+		return weight;
+	}
+
+	/** Return the maximum total weight of the results in this cache. */
+	public long getMaxWeight() {
+		return maxWeight;
+	}
+
+	/** Return the number of times {@link #get(Object)} found a result. */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/** Return the number of times {@link #get(Object)} didn't find a result. */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "ResultCache[ size=" + entries.size() + ", weight=" + weight
+				+ "/" + maxWeight + ", hits=" + hitCount + ", misses="
+				+ missCount + " ]";
+	}
+}
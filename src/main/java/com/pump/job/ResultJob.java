@@ -0,0 +1,89 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job;
+
+/**
+ * A job that produces a result.
+ * <p>
+ * If this job returns a non-null {@link #getCacheKey() cache key} and it is
+ * submitted to a {@link JobManager} that has a {@link ResultCache}, then its
+ * result is memoized: a job whose key is already in the cache finishes
+ * immediately without using a worker thread, and a job whose key matches a
+ * job that is already queued or running finishes when that job does. So
+ * {@link #computeResult()} should be deterministic: two jobs with equal keys
+ * must produce equivalent results.
+ * 
+ * @param <V>
+ *            the type of result this job produces.
+ */
+public abstract class ResultJob<V> extends Job {
+
+	private volatile V result;
+
+	/** Creates a medium-priority job. */
+	public ResultJob() {
+	}
+
+	/**
+	 * Creates a ResultJob with a specific priority.
+	 */
+	public ResultJob(int priority) {
+		super(priority);
+	}
+
+	/**
+	 * Calculate the result of this job. This is subject to the same
+	 * constraints as {@link Job#runJob()}.
+	 */
+	protected abstract V computeResult() throws Exception;
+
+	@Override
+	protected final void runJob() throws Exception {
+		result = computeResult();
+	}
+
+	/**
+	 * Return the result of this job, or null if it hasn't finished (or
+	 * failed).
+	 */
+	public V getResult() {
+		return result;
+	}
+
+	/**
+	 * Assign the result of this job without running it.
+	 */
+	@SuppressWarnings("unchecked")
+	void setResult(Object result) {
+		this.result = (V) result;
+	}
+
+	/**
+	 * Return a key that identifies the inputs of this job, or null if this
+	 * job's result should not be cached. Keys must implement
+	 * <code>equals()</code> and <code>hashCode()</code>.
+	 * <p>
+	 * Keys are compared across all ResultJobs submitted to the same
+	 * JobManager, so a key should include something that identifies the kind
+	 * of job (such as its class).
+	 */
+	public Object getCacheKey() {
+		return null;
+	}
+
+	/**
+	 * Return the weight of a result in a {@link ResultCache}, such as its
+	 * approximate size in bytes. The default implementation returns 1.
+	 */
+	public long getResultWeight(V result) {
+		return 1;
+	}
+}
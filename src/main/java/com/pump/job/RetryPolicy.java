@@ -0,0 +1,172 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+import com.pump.UserCancelledException;
+
+/**
+ * This describes when and how often a failed {@link Job} is retried.
+ * <p>
+ * A job is retried if it threw one of the retryable exception types (or an
+ * exception caused by one), it has not been cancelled, and it has made fewer
+ * than the maximum number of attempts. The delay before each retry grows
+ * exponentially, and is randomized by the jitter so jobs that failed together
+ * don't all retry at the same moment.
+ * <p>
+ * While a job waits to be retried it does not occupy a worker thread, and its
+ * dependents are not released: a job is only finished after its last attempt.
+ * 
+ * @see Job#setRetryPolicy(RetryPolicy)
+ */
+public class RetryPolicy {
+	private final int maxAttempts;
+	private final long initialDelayMillis;
+	private final long maxDelayMillis;
+	private final double multiplier;
+	private final double jitter;
+	private final Class<?>[] retryableExceptions;
+
+	/**
+	 * Create a RetryPolicy that doubles the delay after every attempt.
+	 * 
+	 * @param maxAttempts
+	 *            the maximum number of times a job is run, including the
+	 *            first attempt.
+	 * @param initialDelayMillis
+	 *            the delay before the first retry.
+	 * @param maxDelayMillis
+	 *            the maximum delay between attempts.
+	 * @param retryableExceptions
+	 *            the types of exceptions that are retried. If this is empty
+	 *            then every exception is retried.
+	 */
+	@SafeVarargs
+	public RetryPolicy(int maxAttempts, long initialDelayMillis,
+			long maxDelayMillis,
+			Class<? extends Throwable>... retryableExceptions) {
+		this(maxAttempts, initialDelayMillis, maxDelayMillis, 2, .5,
+				retryableExceptions);
+	}
+
+	/**
+	 * Create a RetryPolicy.
+	 * 
+	 * @param maxAttempts
+	 *            the maximum number of times a job is run, including the
+	 *            first attempt.
+	 * @param initialDelayMillis
+	 *            the delay before the first retry.
+	 * @param maxDelayMillis
+	 *            the maximum delay between attempts.
+	 * @param multiplier
+	 *            the factor the delay grows by after each retry.
+	 * @param jitter
+	 *            a fraction from 0 to 1. Each delay is reduced by a random
+	 *            amount up to this fraction of the delay.
+	 * @param retryableExceptions
+	 *            the types of exceptions that are retried. If this is empty
+	 *            then every exception is retried.
+	 */
+	@SafeVarargs
+	public RetryPolicy(int maxAttempts, long initialDelayMillis,
+			long maxDelayMillis, double multiplier, double jitter,
+			Class<? extends Throwable>... retryableExceptions) {
+		if (maxAttempts < 1)
+			throw new IllegalArgumentException("maxAttempts (" + maxAttempts
+					+ ") must be at least 1");
+		if (initialDelayMillis < 0 || maxDelayMillis < initialDelayMillis)
+			throw new IllegalArgumentException("the delays ("
+					+ initialDelayMillis + ", " + maxDelayMillis
+					+ ") must satisfy 0 <= initialDelay <= maxDelay");
+		if (!(multiplier >= 1))
+			throw new IllegalArgumentException("multiplier (" + multiplier
+					+ ") must be at least 1");
+		if (!(jitter >= 0 && jitter <= 1))
+			throw new IllegalArgumentException("jitter (" + jitter
+					+ ") must be between 0 and 1");
+		this.maxAttempts = maxAttempts;
+		this.initialDelayMillis = initialDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.multiplier = multiplier;
+		this.jitter = jitter;
+		// copy each element, so the varargs array itself never escapes
+		this.retryableExceptions = new Class<?>[retryableExceptions.length];
+		for (int a = 0; a < retryableExceptions.length; a++) {
+			this.retryableExceptions[a] = retryableExceptions[a];
+		}
+	}
+
+	/**
+	 * Return the maximum number of times a job is run, including the first
+	 * attempt.
+	 */
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Return true if a throwable (or one of its causes) is one of the
+	 * retryable exception types.
+	 */
+	public boolean isRetryable(Throwable throwable) {
+		if (throwable instanceof UserCancelledException)
+			return false;
+		if (retryableExceptions.length == 0)
+			return true;
+		while (throwable != null) {
+			for (Class<?> type : retryableExceptions) {
+				if (type.isInstance(throwable))
+					return true;
+			}
+			if (throwable.getCause() == throwable)
+				break;
+			throwable = throwable.getCause();
+		}
+		return false;
+	}
+
+	/**
+	 * Return true if a job should be retried.
+	 * 
+	 * @param attempt
+	 *            the attempt that just failed, starting at 1.
+	 */
+	boolean shouldRetry(Job job, Throwable throwable, int attempt) {
+		return throwable != null && attempt < maxAttempts
+				&& !job.isCancelled() && isRetryable(throwable);
+	}
+
+	/**
+	 * Return the number of milliseconds to wait before the next attempt,
+	 * including jitter.
+	 * 
+	 * @param attempt
+	 *            the attempt that just failed, starting at 1.
+	 */
+	public long getDelayMillis(int attempt) {
+		double delay = initialDelayMillis
+				* Math.pow(multiplier, Math.max(0, attempt - 1));
+		delay = Math.min(delay, maxDelayMillis);
+		delay -= delay * jitter * ThreadLocalRandom.current().nextDouble();
+		return (long) delay;
+	}
+
+	@Override
+	public String toString() {
+		return "RetryPolicy[ maxAttempts=" + maxAttempts + ", initialDelay="
+				+ initialDelayMillis + ", maxDelay=" + maxDelayMillis
+				+ ", multiplier=" + multiplier + ", jitter=" + jitter
+				+ ", retryable=" + Arrays.toString(retryableExceptions) + " ]";
+	}
+}
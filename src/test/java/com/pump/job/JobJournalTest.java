@@ -0,0 +1,90 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class JobJournalTest {
+
+	/** A job that can be journaled, unless its payload isn't serializable. */
+	static class SerializableJob extends Job implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		final Object payload;
+
+		SerializableJob(Object payload) {
+			this.payload = payload;
+		}
+
+		@Override
+		protected void runJob() {
+		}
+	}
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	/**
+	 * If one job in a batch can't be serialized, then none of the batch is
+	 * recovered.
+	 */
+	@Test(timeout = 10000)
+	public void testBatchWithUnserializableJob() throws Exception {
+		File file = new File(folder.getRoot(), "journal");
+		JobJournal journal = new JobJournal(file);
+		JobManager manager = new JobManager(1);
+		manager.setJournal(journal);
+		try {
+			manager.addJob(new SerializableJob("a"), new SerializableJob(
+					new Object()));
+			fail();
+		} catch (RuntimeException e) {
+			// pass
+		}
+		journal.close();
+
+		journal = new JobJournal(file);
+		assertEquals(0, journal.getRecoveredJobs().size());
+		journal.close();
+	}
+
+	/**
+	 * Rejected jobs are not recovered.
+	 */
+	@Test(timeout = 10000)
+	public void testRejectedJobs() throws Exception {
+		File file = new File(folder.getRoot(), "journal");
+		JobJournal journal = new JobJournal(file);
+		JobManager manager = new JobManager(1);
+		manager.setJournal(journal);
+		manager.setCapacity(1, JobManager.OverflowPolicy.REJECT);
+		try {
+			manager.addJob(new SerializableJob("a"), new SerializableJob("b"));
+			fail();
+		} catch (RejectedExecutionException e) {
+			// pass
+		}
+		journal.close();
+
+		journal = new JobJournal(file);
+		assertEquals(0, journal.getRecoveredJobs().size());
+		journal.close();
+	}
+}
@@ -0,0 +1,431 @@
+/**
+ * This software is released as part of the Pumpernickel project.
+ * 
+ * All com.pump resources in the Pumpernickel project are distributed under the
+ * MIT License:
+ * https://github.com/mickleness/pumpernickel/raw/master/License.txt
+ * 
+ * More information about the Pumpernickel project is available here:
+ * https://mickleness.github.io/pumpernickel/
+ */
+package com.pump.job;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class JobManagerTest {
+
+	/** A job that does nothing. */
+	static class EmptyJob extends Job {
+		@Override
+		protected void runJob() {
+		}
+	}
+
+	/** A job that waits for a latch. */
+	static class LatchJob extends Job {
+		final CountDownLatch latch;
+
+		LatchJob(CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		@Override
+		protected void runJob() throws InterruptedException {
+			latch.await();
+		}
+	}
+
+	/** A ResultJob that returns its cache key. */
+	static class KeyJob extends ResultJob<String> {
+		final String key;
+
+		KeyJob(String key) {
+			this.key = key;
+		}
+
+		@Override
+		public Object getCacheKey() {
+			return key;
+		}
+
+		@Override
+		protected String computeResult() {
+			return key;
+		}
+	}
+
+	/** A job that does nothing, and has a replacement id. */
+	static class ReplaceableJob extends EmptyJob {
+		final String replacementId;
+
+		ReplaceableJob(String replacementId) {
+			this.replacementId = replacementId;
+		}
+
+		@Override
+		public String getReplacementId() {
+			return replacementId;
+		}
+	}
+
+	/**
+	 * Wait until a job is finished.
+	 */
+	static void awaitFinished(Job job) throws InterruptedException {
+		while (!job.isFinished()) {
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * Add a job from a new thread, and return once that thread is blocked.
+	 */
+	static Thread submit(final JobManager manager, final Job job)
+			throws InterruptedException {
+		Thread thread = new Thread() {
+			@Override
+			public void run() {
+				manager.addJob(job);
+			}
+		};
+		thread.start();
+		while (thread.getState() != Thread.State.WAITING) {
+			Thread.sleep(1);
+		}
+		return thread;
+	}
+
+	/**
+	 * A parent that removes its forked child by reference must still be able
+	 * to join and finish.
+	 */
+	@Test(timeout = 10000)
+	public void testRemoveForkedChild() throws Exception {
+		final JobManager manager = new JobManager(1);
+		final Job child = new EmptyJob();
+		final boolean[] removed = new boolean[1];
+		Job parent = new Job() {
+			@Override
+			protected void runJob() throws Exception {
+				fork(child);
+				removed[0] = manager.removeJob(child);
+				join();
+			}
+		};
+		manager.addJob(parent);
+		awaitFinished(parent);
+		assertTrue(removed[0]);
+	}
+
+	/**
+	 * Removing a queued ResultJob by reference must release the jobs with the
+	 * same cache key.
+	 */
+	@Test(timeout = 10000)
+	public void testRemoveResultJobLeader() throws Exception {
+		JobManager manager = new JobManager(1);
+		manager.setResultCache(new ResultCache(100));
+		CountDownLatch latch = new CountDownLatch(1);
+		manager.addJob(new LatchJob(latch));
+
+		KeyJob leader = new KeyJob("key");
+		KeyJob duplicate = new KeyJob("key");
+		manager.addJob(leader);
+		manager.addJob(duplicate);
+		assertTrue(manager.removeJob(leader));
+		KeyJob resubmitted = new KeyJob("key");
+		manager.addJob(resubmitted);
+		latch.countDown();
+
+		awaitFinished(duplicate);
+		awaitFinished(resubmitted);
+		assertEquals("key", duplicate.getResult());
+		assertEquals("key", resubmitted.getResult());
+	}
+
+	/**
+	 * A job that depends on a dropped job must not stay pending forever.
+	 */
+	@Test(timeout = 10000)
+	public void testDropJobWithDependents() throws Exception {
+		JobManager manager = new JobManager(1);
+		manager.setCapacity(2, JobManager.OverflowPolicy.DROP_LOWEST_PRIORITY);
+		CountDownLatch latch = new CountDownLatch(1);
+		manager.addJob(new LatchJob(latch));
+
+		Job dropped = new EmptyJob();
+		dropped.setPriority(Job.PRIORITY_LOW);
+		Job dependent = new EmptyJob();
+		dependent.setDependencies(dropped);
+		manager.addJob(dropped, dependent);
+		Job high = new EmptyJob();
+		high.setPriority(Job.PRIORITY_HIGH);
+		manager.addJob(high);
+		latch.countDown();
+
+		awaitFinished(high);
+		awaitFinished(dependent);
+		assertTrue(dropped.isCancelled());
+		while (manager.getJobCount(true) > 0) {
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * A job that depends on a removed job must not stay pending forever.
+	 */
+	@Test(timeout = 10000)
+	public void testRemoveJobWithDependents() throws Exception {
+		JobManager manager = new JobManager(1);
+		CountDownLatch latch = new CountDownLatch(1);
+		manager.addJob(new LatchJob(latch));
+
+		Job a = new EmptyJob();
+		Job b = new EmptyJob();
+		b.setDependencies(a);
+		manager.addJob(a, b);
+		assertTrue(manager.removeJob(a));
+		latch.countDown();
+
+		awaitFinished(b);
+		assertTrue(a.isCancelled());
+		while (manager.getJobCount(false) > 0) {
+			Thread.sleep(1);
+		}
+	}
+
+	/**
+	 * A new job can't depend on a job that was removed without running.
+	 */
+	@Test(timeout = 10000)
+	public void testDependOnRemovedJob() throws Exception {
+		JobManager manager = new JobManager(1);
+		CountDownLatch latch = new CountDownLatch(1);
+		manager.addJob(new LatchJob(latch));
+
+		Job a = new EmptyJob();
+		manager.addJob(a);
+		assertTrue(manager.removeJob(a));
+		Job b = new EmptyJob();
+		b.setDependencies(a);
+		try {
+			manager.addJob(b);
+			fail();
+		} catch (IllegalArgumentException e) {
+			// pass
+		} finally {
+			latch.countDown();
+		}
+	}
+
+	/**
+	 * A parent that joins must be able to run its children that have a
+	 * resource class, even if no other worker is available.
+	 */
+	@Test(timeout = 10000)
+	public void testJoinResourceClassChildren() throws Exception {
+		JobManager manager = new JobManager(1);
+		manager.setConcurrencyLimit("limited", 1);
+		final Job unlimitedChild = new EmptyJob();
+		unlimitedChild.setResourceClass("disk");
+		final Job[] limitedChildren = { new EmptyJob(), new EmptyJob() };
+		for (Job child : limitedChildren) {
+			child.setResourceClass("limited");
+		}
+		Job parent = new Job() {
+			@Override
+			protected void runJob() throws Exception {
+				fork(unlimitedChild);
+				for (Job child : limitedChildren) {
+					fork(child);
+				}
+				join();
+			}
+		};
+		manager.addJob(parent);
+		awaitFinished(parent);
+		assertTrue(unlimitedChild.isFinished());
+		for (Job child : limitedChildren) {
+			assertTrue(child.isFinished());
+		}
+
+		// the children must have released their slots
+		Job next = new EmptyJob();
+		next.setResourceClass("limited");
+		manager.addJob(next);
+		awaitFinished(next);
+	}
+
+	/**
+	 * Every attempt of a retried job must be reported as added, and then as
+	 * removed or as an error.
+	 */
+	@Test(timeout = 10000)
+	public void testRetryListenerEvents() throws Exception {
+		JobManager manager = new JobManager(1);
+		final AtomicInteger added = new AtomicInteger();
+		final AtomicInteger removed = new AtomicInteger();
+		final AtomicInteger errors = new AtomicInteger();
+		manager.addListener(new JobManager.Listener() {
+			public void jobError(JobManager m, Job job, Throwable t) {
+				errors.incrementAndGet();
+			}
+
+			public void jobAdded(JobManager m, Job... jobs) {
+				added.addAndGet(jobs.length);
+			}
+
+			public void jobRemoved(JobManager m, Job... jobs) {
+				removed.addAndGet(jobs.length);
+			}
+
+			public void jobSkipped(JobManager m, Job... jobs) {
+			}
+
+			public void jobQueued(JobManager m, Job... jobs) {
+			}
+		});
+		final AtomicInteger attempts = new AtomicInteger();
+		Job job = new Job() {
+			@Override
+			protected void runJob() {
+				if (attempts.incrementAndGet() < 3)
+					throw new IllegalStateException();
+			}
+		};
+		job.setRetryPolicy(new RetryPolicy(3, 0, 0));
+		manager.addJob(job);
+		while (removed.get() == 0) {
+			Thread.sleep(1);
+		}
+		assertEquals(3, added.get());
+		assertEquals(2, errors.get());
+		assertEquals(1, removed.get());
+	}
+
+	/**
+	 * When a joining parent runs a child with a resource class, the job
+	 * that waits for that child's slot must start as soon as the child
+	 * finishes.
+	 */
+	@Test(timeout = 10000)
+	public void testJoinReleasesResourceClassSlot() throws Exception {
+		JobManager manager = new JobManager(2);
+		manager.setConcurrencyLimit("disk", 1);
+		CountDownLatch blockerLatch = new CountDownLatch(1);
+		final CountDownLatch childStarted = new CountDownLatch(1);
+		final CountDownLatch childLatch = new CountDownLatch(1);
+		final CountDownLatch parentLatch = new CountDownLatch(1);
+		final Job child = new Job() {
+			@Override
+			protected void runJob() throws InterruptedException {
+				childStarted.countDown();
+				childLatch.await();
+			}
+		};
+		child.setResourceClass("disk");
+		Job parent = new Job() {
+			@Override
+			protected void runJob() throws Exception {
+				fork(child);
+				join();
+				parentLatch.await();
+			}
+		};
+		// keep the other worker busy, so the parent runs its child itself
+		Job blocker = new LatchJob(blockerLatch);
+		manager.addJob(blocker, parent);
+		childStarted.await();
+		blockerLatch.countDown();
+		awaitFinished(blocker);
+
+		Job waiting = new EmptyJob();
+		waiting.setResourceClass("disk");
+		manager.addJob(waiting);
+		childLatch.countDown();
+		awaitFinished(waiting);
+		parentLatch.countDown();
+		awaitFinished(parent);
+	}
+
+	/**
+	 * In work-stealing mode a high priority job on a worker's local deque
+	 * must not wait behind lower priority jobs in the shared queue.
+	 */
+	@Test(timeout = 10000)
+	public void testWorkStealingLocalJobPriority() throws Exception {
+		final JobManager manager = new JobManager(1,
+				JobManager.ExecutionMode.WORK_STEALING);
+		final AtomicInteger lowJobsRun = new AtomicInteger();
+		final int[] lowJobsBeforeLocalJob = { -1 };
+		final Job localJob = new Job(Job.PRIORITY_HIGH) {
+			@Override
+			protected void runJob() {
+				lowJobsBeforeLocalJob[0] = lowJobsRun.get();
+			}
+		};
+		Job[] jobs = new Job[21];
+		for (int a = 0; a < 20; a++) {
+			jobs[a] = new Job(Job.PRIORITY_LOW) {
+				@Override
+				protected void runJob() {
+					lowJobsRun.incrementAndGet();
+				}
+			};
+		}
+		// this runs first, and pushes localJob onto its worker's deque
+		jobs[20] = new Job(Job.PRIORITY_HIGH) {
+			@Override
+			protected void runJob() {
+				manager.addJob(localJob);
+			}
+		};
+		manager.addJob(jobs);
+		awaitFinished(localJob);
+		assertEquals(0, lowJobsBeforeLocalJob[0]);
+	}
+
+	/**
+	 * A job that is blocked waiting for capacity is not queued yet, so a
+	 * newer job with the same replacement id must not cancel it.
+	 */
+	@Test(timeout = 10000)
+	public void testBlockedJobIsNotReplaced() throws Exception {
+		final JobManager manager = new JobManager(1);
+		manager.setCapacity(1, JobManager.OverflowPolicy.BLOCK);
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch latch = new CountDownLatch(1);
+		manager.addJob(new Job() {
+			@Override
+			protected void runJob() throws InterruptedException {
+				started.countDown();
+				latch.await();
+			}
+		});
+		started.await();
+		// fill the queue
+		manager.addJob(new EmptyJob());
+
+		final Job first = new ReplaceableJob("x");
+		final Job second = new ReplaceableJob("x");
+		Thread firstSubmitter = submit(manager, first);
+		Thread secondSubmitter = submit(manager, second);
+		assertFalse(first.isCancelled());
+
+		latch.countDown();
+		firstSubmitter.join();
+		secondSubmitter.join();
+		while (!(first.isFinished() || first.isCancelled())
+				|| !(second.isFinished() || second.isCancelled())) {
+			Thread.sleep(1);
+		}
+	}
+}